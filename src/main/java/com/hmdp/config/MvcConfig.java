@@ -2,6 +2,8 @@ package com.hmdp.config;
 
 import com.hmdp.interceptor.LoginInterceptor;
 import com.hmdp.interceptor.RefreshTokenInterceptor;
+import com.hmdp.interceptor.SeckillLimitInterceptor;
+import com.hmdp.utils.SeckillRateLimiter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -20,6 +22,9 @@ public class MvcConfig implements WebMvcConfigurer {
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private SeckillRateLimiter seckillRateLimiter;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor())
@@ -37,5 +42,8 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/login",
                         "/user/code"
                 ).order(0);
+//        秒杀限流，在登录校验之后执行
+        registry.addInterceptor(new SeckillLimitInterceptor(seckillRateLimiter))
+                .addPathPatterns("/voucher-order/seckill/**").order(2);
     }
 }
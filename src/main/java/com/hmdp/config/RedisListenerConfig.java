@@ -0,0 +1,41 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.BloomFilters;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.ShopGeoIndex;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+/**
+ * 2023/2/6 10:30
+ * redis发布订阅监听
+ *
+ * @author tfqy
+ */
+
+@Configuration
+public class RedisListenerConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(
+            RedisConnectionFactory connectionFactory, SeckillSoldOutCache seckillSoldOutCache,
+            CacheClient cacheClient, BloomFilters bloomFilters, ShopGeoIndex shopGeoIndex) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        // 秒杀券售罄和库存恢复通知
+        container.addMessageListener(seckillSoldOutCache, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+        container.addMessageListener(seckillSoldOutCache, new ChannelTopic(RedisConstants.SECKILL_ON_SALE_CHANNEL));
+        // 本地缓存失效通知
+        container.addMessageListener(cacheClient, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        // 布隆过滤器新增和重建通知
+        container.addMessageListener(bloomFilters, new ChannelTopic(RedisConstants.BLOOM_FILTER_CHANNEL));
+        // 商铺新增和修改通知，更新本地坐标索引
+        container.addMessageListener(shopGeoIndex, new ChannelTopic(RedisConstants.SHOP_GEO_CHANNEL));
+        return container;
+    }
+}
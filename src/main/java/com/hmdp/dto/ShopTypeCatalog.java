@@ -0,0 +1,38 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 2023/2/17 9:30
+ * 商铺类型目录的不可变快照，包含预先序列化好的响应体和ETag
+ *
+ * @author tfqy
+ */
+
+@Getter
+public class ShopTypeCatalog {
+    /**
+     * 本节点加载的第几个版本
+     */
+    private final long version;
+    private final List<ShopType> types;
+    /**
+     * Result.ok(types) 序列化后的json，调用方不能修改
+     */
+    private final byte[] body;
+    /**
+     * 根据响应体计算，内容相同时各节点的ETag相同
+     */
+    private final String etag;
+
+    public ShopTypeCatalog(long version, List<ShopType> types, byte[] body, String etag) {
+        this.version = version;
+        this.types = Collections.unmodifiableList(types);
+        this.body = body;
+        this.etag = etag;
+    }
+}
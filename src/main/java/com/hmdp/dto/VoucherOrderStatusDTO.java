@@ -0,0 +1,27 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class VoucherOrderStatusDTO {
+    /**
+     * 排队中，订单还没有写入数据库
+     */
+    public static final String PENDING = "PENDING";
+    /**
+     * 下单成功
+     */
+    public static final String CREATED = "CREATED";
+    /**
+     * 下单失败
+     */
+    public static final String FAILED = "FAILED";
+
+    private Long orderId;
+    private Long voucherId;
+    private String status;
+}
@@ -0,0 +1,55 @@
+package com.hmdp.interceptor;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.UserHolder;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 2023/2/8 15:55
+ * 秒杀限流拦截器，在进入秒杀业务之前拒绝超出的请求
+ *
+ * @author tfqy
+ */
+
+public class SeckillLimitInterceptor implements HandlerInterceptor {
+
+    private final SeckillRateLimiter seckillRateLimiter;
+
+    public SeckillLimitInterceptor(SeckillRateLimiter seckillRateLimiter) {
+        this.seckillRateLimiter = seckillRateLimiter;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserDTO user = UserHolder.getUser();
+        @SuppressWarnings("unchecked")
+        Map<String, String> pathVariables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        if (user == null || pathVariables == null || pathVariables.get("id") == null) {
+            return true;
+        }
+        Long voucherId;
+        try {
+            voucherId = Long.valueOf(pathVariables.get("id"));
+        } catch (NumberFormatException e) {
+            return true;
+        }
+        if (seckillRateLimiter.tryAcquire(voucherId, user.getId())) {
+            return true;
+        }
+//        直接返回繁忙，不进入秒杀业务
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail("活动太火爆，请稍后再试")));
+        return false;
+    }
+}
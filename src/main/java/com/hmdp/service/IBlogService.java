@@ -16,6 +16,8 @@ public interface IBlogService extends IService<Blog> {
 
     Result queryBlogById(Long id);
 
+    Blog queryBlog(Long id);
+
     Result queryHotBlog(Integer current);
 
     Result likeBlog(Long id);
@@ -25,4 +27,6 @@ public interface IBlogService extends IService<Blog> {
     Result saveBlog(Blog blog);
 
     Result queryBlogOfFollow(Long max, Integer offset);
+
+    void rebuildBloomFilter();
 }
@@ -13,4 +13,9 @@ import com.hmdp.entity.SeckillVoucher;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    void saveStock2Redis(SeckillVoucher seckillVoucher, int shardCount);
+
+    boolean preheat(Long voucherId);
+
+    void preheatActiveVouchers();
 }
@@ -16,7 +16,13 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Shop queryShopById(Long id);
+
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    void rebuildBloomFilter();
 }
@@ -2,6 +2,7 @@ package com.hmdp.service;
 
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeCatalog;
 import com.hmdp.entity.ShopType;
 
 /**
@@ -16,4 +17,7 @@ public interface IShopTypeService extends IService<ShopType> {
 
     Result queryList();
 
+    ShopTypeCatalog getCatalog();
+
+    ShopTypeCatalog refreshCatalog();
 }
@@ -2,6 +2,7 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
@@ -14,14 +15,22 @@ import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilters;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HmdpCacheable;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.aop.framework.AopContext;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -32,31 +41,45 @@ import java.util.stream.Collectors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
     private final IUserService userService;
     private final StringRedisTemplate redisTemplate;
     private final IFollowService followService;
+    private final BloomFilters bloomFilters;
+    private final CacheClient cacheClient;
 
-    public BlogServiceImpl(IUserService userService, StringRedisTemplate redisTemplate, IFollowService followService) {
+    public BlogServiceImpl(IUserService userService, StringRedisTemplate redisTemplate, IFollowService followService,
+                           BloomFilters bloomFilters, CacheClient cacheClient) {
         this.userService = userService;
         this.redisTemplate = redisTemplate;
         this.followService = followService;
+        this.bloomFilters = bloomFilters;
+        this.cacheClient = cacheClient;
     }
 
     @Override
     public Result queryBlogById(Long id) {
-        // 1.查询blog
-        Blog blog = getById(id);
-        if (blog == null) {
+        // 1.查询blog，先查布隆过滤器和缓存
+        Blog cached = ((IBlogService) AopContext.currentProxy()).queryBlog(id);
+        if (cached == null) {
             return Result.fail("笔记不存在！");
         }
+        // 缓存的对象可能被多个请求共享，复制一份再填充用户信息
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
         // 2.查询blog有关的用户
         queryBlogUser(blog);
         return Result.ok(blog);
     }
 
+    @Override
+    @HmdpCacheable(prefix = RedisConstants.CACHE_BLOG_KEY, key = "#id")
+    public Blog queryBlog(Long id) {
+        return getById(id);
+    }
+
     private void queryBlogUser(Blog blog) {
         Long userId = blog.getUserId();
         User user = userService.getById(userId);
@@ -94,6 +117,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //3.2 保存用户到Redis的zset集合
             if (isSuccess) {
                 redisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
             }
         } else {
             //4.如果已点赞，取消点赞
@@ -102,6 +126,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //4.2 把用户从Redis的set集合移除
             if (isSuccess) {
                 redisTemplate.opsForZSet().remove(key, userId.toString());
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
             }
         }
         return Result.ok();
@@ -140,6 +165,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增笔记失败!");
         }
+        bloomFilters.blog().put(blog.getId());
         // 3.查询笔记作者的所有粉丝 select * from tb_follow where follow_user_id = ?
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
         // 4.推送笔记id给所有粉丝
@@ -154,6 +180,20 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(blog.getId());
     }
 
+    /**
+     * 启动时以及定时根据数据库重建笔记id的布隆过滤器
+     */
+    @Override
+    @Scheduled(fixedDelayString = "${hmdp.bloom.rebuild-interval-ms:3600000}")
+    public void rebuildBloomFilter() {
+        try {
+            bloomFilters.blog().rebuild(() -> listObjs(new QueryWrapper<Blog>().select("id"),
+                    id -> ((Number) id).longValue()));
+        } catch (Exception e) {
+            log.error("重建笔记布隆过滤器异常", e);
+        }
+    }
+
     @Override
     public Result queryBlogOfFollow(Long max, Integer offset) { //max=4 offset=1
         // 1.获取当前用户
@@ -184,9 +224,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             }
         }
 //        os = minTime == max ? os : os + offset;
-        // 5.根据id查询blog
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        // 5.根据id批量查询blog，优先从缓存中获取
+        List<Blog> blogs = cacheClient.queryBatch(RedisConstants.CACHE_BLOG_KEY, ids, Blog.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
 
         for (Blog blog : blogs) {
             // 5.1.查询blog有关的用户
@@ -4,8 +4,23 @@ import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +29,123 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    private static final DefaultRedisScript<Long> PREHEAT_SCRIPT;
+    private final StringRedisTemplate redisTemplate;
+    private final SeckillSoldOutCache soldOutCache;
+
+    static {
+        PREHEAT_SCRIPT = new DefaultRedisScript<>();
+        PREHEAT_SCRIPT.setLocation(new ClassPathResource("seckill_preheat.lua"));
+        PREHEAT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Autowired
+    public SeckillVoucherServiceImpl(StringRedisTemplate redisTemplate, SeckillSoldOutCache soldOutCache) {
+        this.redisTemplate = redisTemplate;
+        this.soldOutCache = soldOutCache;
+    }
+
+    /**
+     * 把库存和秒杀时间写入redis的hash中，库存已经存在时只刷新秒杀时间
+     * 写入了库存时清除各节点的售罄标记
+     *
+     * @param seckillVoucher 秒杀券
+     * @param shardCount     库存分片数，大于1时库存平均拆分到各个分片
+     */
+    @Override
+    public void saveStock2Redis(SeckillVoucher seckillVoucher, int shardCount) {
+        saveStock2Redis(seckillVoucher, shardCount, true);
+    }
+
+    /**
+     * @param seedStock redis中没有库存时是否用数据库的库存写入
+     * @return 所有分片的库存都存在或已写入时返回true
+     */
+    private boolean saveStock2Redis(SeckillVoucher seckillVoucher, int shardCount, boolean seedStock) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        String begin = String.valueOf(toEpochMilli(seckillVoucher.getBeginTime()));
+        String end = String.valueOf(toEpochMilli(seckillVoucher.getEndTime()));
+        String seed = seedStock ? "1" : "0";
+        boolean seeded = false;
+        boolean ready = true;
+        if (shardCount <= 1) {
+            Long r = redisTemplate.execute(PREHEAT_SCRIPT, Collections.singletonList(RedisConstants.SECKILL_STOCK_KEY + voucherId),
+                    seckillVoucher.getStock().toString(), begin, end, seed);
+            seeded = r != null && r == 1;
+            ready = r != null && r >= 0;
+        } else {
+            // 库存平均拆分到各个分片，余数分给前面的分片
+            int stock = seckillVoucher.getStock();
+            for (int i = 0; i < shardCount; i++) {
+                int shardStock = stock / shardCount + (i < stock % shardCount ? 1 : 0);
+                Long r = redisTemplate.execute(PREHEAT_SCRIPT, Collections.singletonList(SeckillKeys.shardStockKey(voucherId, i)),
+                        String.valueOf(shardStock), begin, end, seed);
+                seeded |= r != null && r == 1;
+                ready &= r != null && r >= 0;
+            }
+            redisTemplate.opsForValue().set(RedisConstants.SECKILL_SHARDS_KEY + voucherId, String.valueOf(shardCount));
+        }
+        if (seeded) {
+            soldOutCache.unmarkSoldOut(voucherId);
+        }
+        return ready;
+    }
+
+    /**
+     * 预热单个秒杀券，秒杀时发现库存未预热时调用
+     * 秒杀开始后数据库的库存落后于redis（消息队列中还有未写库的订单），这时redis中的库存丢失也不再用数据库的库存写入
+     *
+     * @return 秒杀券不存在，或者秒杀已经开始而redis中没有库存时返回false
+     */
+    @Override
+    public boolean preheat(Long voucherId) {
+        // 1.不存在的秒杀券短时间内不再查询数据库
+        String missingKey = RedisConstants.SECKILL_MISSING_KEY + voucherId;
+        if (Boolean.TRUE.equals(redisTemplate.hasKey(missingKey))) {
+            return false;
+        }
+        SeckillVoucher seckillVoucher = getById(voucherId);
+        if (seckillVoucher == null) {
+            redisTemplate.opsForValue().set(missingKey, "", RedisConstants.SECKILL_MISSING_TTL, TimeUnit.MINUTES);
+            return false;
+        }
+        // 2.只有秒杀开始前才用数据库的库存写入
+        boolean ready = saveStock2Redis(seckillVoucher, getShardCount(voucherId),
+                LocalDateTime.now().isBefore(seckillVoucher.getBeginTime()));
+        if (!ready) {
+            log.error("秒杀已经开始，redis中的库存丢失，不能从数据库预热，优惠券id：{}", voucherId);
+        }
+        return ready;
+    }
+
+    /**
+     * 启动时以及定时预热所有未结束的秒杀券，已经开始的秒杀券只刷新秒杀时间
+     */
+    @Override
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat-interval-ms:60000}")
+    public void preheatActiveVouchers() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = query().gt("end_time", now).list();
+            for (SeckillVoucher voucher : vouchers) {
+                saveStock2Redis(voucher, getShardCount(voucher.getVoucherId()), now.isBefore(voucher.getBeginTime()));
+            }
+            log.debug("预热秒杀券{}个", vouchers.size());
+        } catch (Exception e) {
+            log.error("预热秒杀券异常", e);
+        }
+    }
+
+    private int getShardCount(Long voucherId) {
+        String count = redisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        return count == null ? 1 : Integer.parseInt(count);
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
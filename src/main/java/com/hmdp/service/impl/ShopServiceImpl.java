@@ -1,33 +1,42 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.BloomFilters;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheStrategy;
+import com.hmdp.utils.GeoUtils;
+import com.hmdp.utils.HmdpCacheEvict;
+import com.hmdp.utils.HmdpCacheable;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopGeoIndex;
 import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.Distance;
-import org.springframework.data.geo.GeoResult;
-import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -37,147 +46,80 @@ import java.util.concurrent.TimeUnit;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
-    public static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     private final StringRedisTemplate redisTemplate;
     private final CacheClient cacheClient;
+    private final BloomFilters bloomFilters;
+    private final ShopGeoIndex shopGeoIndex;
+
+    // 附近商铺快照的网格大小，坐标乘以这个值取整，1000约为100米
+    @Value("${hmdp.geo.cell-scale:1000}")
+    private double geoCellScale;
+
+    // 快照的有效期，每次翻页都会刷新，快照在这么长时间没有被读取后过期，新增的商铺在这之后可见
+    @Value("${hmdp.geo.snapshot-ttl-seconds:60}")
+    private long geoSnapshotTtlSeconds;
+
+    // 快照最多保存的商铺数量，也是最多能翻到的商铺数量
+    @Value("${hmdp.geo.snapshot-max-size:1000}")
+    private long geoSnapshotMaxSize;
 
     @Autowired
-    public ShopServiceImpl(StringRedisTemplate redisTemplate, CacheClient cacheClient) {
+    public ShopServiceImpl(StringRedisTemplate redisTemplate, CacheClient cacheClient, BloomFilters bloomFilters,
+                           ShopGeoIndex shopGeoIndex) {
         this.redisTemplate = redisTemplate;
         this.cacheClient = cacheClient;
+        this.bloomFilters = bloomFilters;
+        this.shopGeoIndex = shopGeoIndex;
     }
 
     @Override
     public Result queryById(Long id) {
-        //互斥锁解决缓存击穿
-//        Shop shop = queryWithMutex(id);
-        // 解决缓存穿透
-        Shop shop = cacheClient
-                .queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
-                        this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        //缓存穿透
-//        Shop shop = queryWithPassThrough(id);
-        //逻辑过期解决缓存击穿
-//        Shop shop = queryWithLogicalExpire(id);
+        // 通过代理对象调用，由@HmdpCacheable指定的策略查询缓存
+        Shop shop = ((IShopService) AopContext.currentProxy()).queryShopById(id);
         if (shop == null) {
             return Result.fail("店铺不存在");
         }
         return Result.ok(shop);
     }
 
-    public Shop queryWithPassThrough(Long id) {
-        // 从redis中获取店铺信息
-        String shopInfo = redisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-        // 判断redis中是否有店铺信息
-        if (StrUtil.isNotBlank(shopInfo)) {
-            return JSONUtil.toBean(shopInfo, Shop.class);
-        }
-        if (shopInfo != null) {
-            return null;
-        }
-        // 从数据库中查询店铺信息
-        Shop shop = this.getById(id);
-        // 判断店铺是否存在
-        if (shop == null) {
-            redisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id,
-                    "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        // 将店铺信息存入redis
-        redisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id,
-                JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        return shop;
-    }
-
-    public Shop queryWithMutex(Long id) {
-        // 从redis中获取店铺信息
-        String shopInfo = redisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-        // 判断redis中是否有店铺信息
-        if (StrUtil.isNotBlank(shopInfo)) {
-            return JSONUtil.toBean(shopInfo, Shop.class);
-        }
-        if (shopInfo != null) {
-            return null;
-        }
-        // 尝试获取redis锁
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(RedisConstants.LOCK_SHOP_KEY + id);
-            if (!isLock) {
-                // 获取锁失败，等待一段时间后重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            // 从数据库中查询店铺信息
-            shop = this.getById(id);
-            //模拟数据库查询耗时
-            Thread.sleep(200);
-            // 判断店铺是否存在
-            if (shop == null) {
-                redisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id,
-                        "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            // 将店铺信息存入redis
-            redisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id,
-                    JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 释放redis锁
-            unlock(RedisConstants.LOCK_SHOP_KEY + id);
-        }
-        return shop;
+    /**
+     * 本地缓存 + redis两级缓存，布隆过滤器和缓存空值解决缓存穿透
+     * 其它策略：互斥锁 CacheStrategy.MUTEX，逻辑过期 CacheStrategy.LOGICAL_EXPIRE（需要先调用saveShop2Redis预热）
+     */
+    @Override
+    @HmdpCacheable(prefix = RedisConstants.CACHE_SHOP_KEY, key = "#id", strategy = CacheStrategy.LOCAL)
+    public Shop queryShopById(Long id) {
+        return getById(id);
     }
 
-    public Shop queryWithLogicalExpire(Long id) {
-        // 从redis中获取店铺信息
-        String shopInfo = redisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-        // 判断redis中是否有店铺信息
-        if (StrUtil.isBlank(shopInfo)) {
-            return null;
-        }
-        RedisData redisData = JSONUtil.toBean(shopInfo, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 判断店铺信息是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            return shop;
-        }
-        // 已过期，需要缓存重建
-        // 尝试获取redis锁
-        boolean isLock = tryLock(RedisConstants.LOCK_SHOP_KEY + id);
-        // 判断是否获取锁成功
-        if (isLock) {
-            // 成功，开启独立线程进行缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    saveShop2Redis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放redis锁
-                    unlock(RedisConstants.LOCK_SHOP_KEY + id);
-                }
-            });
-        }
-        return shop;
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 加入布隆过滤器
+        bloomFilters.shop().put(shop.getId());
+        // 通知各节点加入坐标索引
+        shopGeoIndex.publishChanged(shop.getId());
+        // 返回店铺id
+        return Result.ok(shop.getId());
     }
 
     @Override
     @Transactional
+    @HmdpCacheEvict(prefix = RedisConstants.CACHE_SHOP_KEY, key = "#shop.id")
     public Result update(Shop shop) {
         Long id = shop.getId();
         if (id == null) {
             return Result.fail("店铺id不能为空");
         }
-        // 更新店铺信息
+        // 更新店铺信息，事务提交后由@HmdpCacheEvict删除redis和各节点本地缓存中的店铺信息
         updateById(shop);
-        // 删除redis中的店铺信息
-        redisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 事务提交后通知各节点更新坐标索引
+        shopGeoIndex.publishChanged(id);
         return Result.ok();
     }
 
@@ -196,54 +138,143 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         int start = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
         // 计算分页结束位置
         int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
-        // 查询redis中的店铺信息，按照距离排序
-        GeoResults<RedisGeoCommands.GeoLocation<String>> results = redisTemplate.opsForGeo().search(
-                RedisConstants.SHOP_GEO_KEY + typeId,
-                GeoReference.fromCoordinate(x, y),
-                new Distance(5000),
-                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(end)
-        );
-        if (results == null) {
-            return Result.ok(Collections.emptyList());
-        }
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
-        if (list.size() <= start) {
+        // 1.查询这一页的商铺id和距离，本地坐标索引已加载时直接在内存中查询
+        Map<Long, Double> distanceMap = shopGeoIndex.isReady()
+                ? queryNearbyFromIndex(typeId, x, y, start, end)
+                : queryNearbyFromSnapshot(typeId, x, y, start, end);
+        if (distanceMap.isEmpty()) {
             // 没有下一页了，结束
             return Result.ok(Collections.emptyList());
         }
-        List<Long> ids = new ArrayList<>(list.size());
-        Map<String, Distance> distanceMap = new HashMap<>();
-        list.stream().skip(start).forEach(geoResult -> {
-            String shopId = geoResult.getContent().getName();
-            Distance distance = geoResult.getDistance();
-            ids.add(Long.valueOf(shopId));
-            distanceMap.put(shopId, distance);
-        });
-        //5. 根据id查询shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        List<Long> ids = new ArrayList<>(distanceMap.keySet());
+        //2. 根据id批量查询shop，优先从缓存中获取
+        List<Shop> shops = cacheClient.queryBatch(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
         for (Shop shop : shops) {
-            //设置shop的举例属性，从distanceMap中根据shopId查询
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            // redis快照中是到网格中心的距离，有坐标时按用户的坐标重新计算
+            shop.setDistance(shop.getX() != null && shop.getY() != null
+                    ? GeoUtils.distance(x, y, shop.getX(), shop.getY())
+                    : distanceMap.get(shop.getId()));
         }
-        //6. 返回
+        //3. 返回
         return Result.ok(shops);
     }
 
-    private boolean tryLock(String key) {
-        return Boolean.TRUE.equals(redisTemplate.opsForValue().setIfAbsent(key, "1", RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS));
+    private Map<Long, Double> queryNearbyFromIndex(Integer typeId, double x, double y, int start, int end) {
+        List<ShopGeoIndex.Hit> hits = shopGeoIndex.search(typeId.longValue(), x, y, 5000, end);
+        Map<Long, Double> distanceMap = new LinkedHashMap<>();
+        for (int i = start; i < hits.size(); i++) {
+            distanceMap.put(hits.get(i).getId(), hits.get(i).getDistance());
+        }
+        return distanceMap;
+    }
+
+    private Map<Long, Double> queryNearbyFromSnapshot(Integer typeId, double x, double y, int start, int end) {
+        // 按距离排序的附近商铺快照，同一个网格内的请求共用，每页只按下标读取
+        String snapshotKey = geoSnapshotKey(typeId, x, y);
+        Set<ZSetOperations.TypedTuple<String>> page = readGeoSnapshot(snapshotKey, start, end);
+        if (page == null) {
+            // 快照不存在，以网格中心为圆心查询并保存快照，附近没有商铺时直接返回空
+            if (createGeoSnapshot(typeId, x, y, snapshotKey) == 0) {
+                return Collections.emptyMap();
+            }
+            page = readGeoSnapshot(snapshotKey, start, end);
+        }
+        Map<Long, Double> distanceMap = new LinkedHashMap<>();
+        if (page != null) {
+            for (ZSetOperations.TypedTuple<String> tuple : page) {
+                distanceMap.put(Long.valueOf(Objects.requireNonNull(tuple.getValue())), tuple.getScore());
+            }
+        }
+        return distanceMap;
     }
 
-    private void unlock(String key) {
-        redisTemplate.delete(key);
+    private String geoSnapshotKey(Integer typeId, double x, double y) {
+        return RedisConstants.SHOP_GEO_SNAPSHOT_KEY + typeId + ":"
+                + (long) Math.floor(x * geoCellScale) + ":" + (long) Math.floor(y * geoCellScale);
+    }
+
+    // 附近没有商铺时redis不会保存空的快照，另外保存一个标记，有效期内不再重复查询
+    private static String emptyGeoSnapshotKey(String snapshotKey) {
+        return snapshotKey + ":empty";
+    }
+
+    /**
+     * 读取快照的一页，并在同一个pipeline中刷新有效期，翻页期间快照不会过期
+     *
+     * @return 快照不存在时返回null，附近没有商铺时返回空集合
+     */
+    @SuppressWarnings("unchecked")
+    private Set<ZSetOperations.TypedTuple<String>> readGeoSnapshot(String snapshotKey, int start, int end) {
+        List<Object> results = redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                ops.opsForZSet().rangeWithScores(snapshotKey, start, end - 1);
+                ops.expire(snapshotKey, geoSnapshotTtlSeconds, TimeUnit.SECONDS);
+                ops.hasKey(emptyGeoSnapshotKey(snapshotKey));
+                return null;
+            }
+        });
+        // EXPIRE返回false说明快照不存在
+        if (!BooleanUtil.isTrue((Boolean) results.get(1))) {
+            return BooleanUtil.isTrue((Boolean) results.get(2)) ? Collections.emptySet() : null;
+        }
+        return (Set<ZSetOperations.TypedTuple<String>>) results.get(0);
+    }
+
+    /**
+     * @return 快照中的商铺数量
+     */
+    private long createGeoSnapshot(Integer typeId, double x, double y, String snapshotKey) {
+        Point center = new Point((Math.floor(x * geoCellScale) + 0.5) / geoCellScale,
+                (Math.floor(y * geoCellScale) + 0.5) / geoCellScale);
+        // 在redis中查询并保存为zset，分数为距离，和设置有效期在一个事务中执行，不会留下没有有效期的快照
+        List<Object> results = redisTemplate.execute(new SessionCallback<List<Object>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> List<Object> execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                ops.multi();
+                ops.opsForGeo().searchAndStore(
+                        RedisConstants.SHOP_GEO_KEY + typeId,
+                        snapshotKey,
+                        GeoReference.fromCoordinate(center),
+                        new Distance(5000),
+                        RedisGeoCommands.GeoSearchStoreCommandArgs.newGeoSearchStoreArgs()
+                                .sortAscending().limit(geoSnapshotMaxSize).storeDistance()
+                );
+                ops.expire(snapshotKey, geoSnapshotTtlSeconds, TimeUnit.SECONDS);
+                return ops.exec();
+            }
+        });
+        long count = results == null || results.isEmpty() || results.get(0) == null
+                ? 0 : ((Number) results.get(0)).longValue();
+        if (count == 0) {
+            redisTemplate.opsForValue().set(emptyGeoSnapshotKey(snapshotKey), "",
+                    geoSnapshotTtlSeconds, TimeUnit.SECONDS);
+        }
+        return count;
+    }
+
+    /**
+     * 启动时以及定时根据数据库重建商铺id的布隆过滤器
+     */
+    @Override
+    @Scheduled(fixedDelayString = "${hmdp.bloom.rebuild-interval-ms:3600000}")
+    public void rebuildBloomFilter() {
+        try {
+            bloomFilters.shop().rebuild(() -> listObjs(new QueryWrapper<Shop>().select("id"),
+                    id -> ((Number) id).longValue()));
+        } catch (Exception e) {
+            log.error("重建商铺布隆过滤器异常", e);
+        }
     }
 
     public void saveShop2Redis(Long id, Long expireSeconds) throws InterruptedException {
         Thread.sleep(200);
         Shop shop = this.getById(id);
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        redisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 }
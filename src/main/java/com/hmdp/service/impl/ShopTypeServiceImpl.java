@@ -1,17 +1,19 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.json.JSONUtil;
+import cn.hutool.crypto.digest.DigestUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeCatalog;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
-import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -22,38 +24,60 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
-    private final StringRedisTemplate redisTemplate;
+    private final ObjectMapper objectMapper;
+
+    // 当前的商铺类型目录，只整体替换，不修改
+    private volatile ShopTypeCatalog catalog;
 
     @Autowired
-    public ShopTypeServiceImpl(StringRedisTemplate redisTemplate) {
-        this.redisTemplate = redisTemplate;
+    public ShopTypeServiceImpl(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
     }
 
     @Override
     public Result queryList() {
-        // 从redis中获取店铺类型信息
-        List<String> shopTypesJson = redisTemplate.opsForList().range(RedisConstants.CACHE_SHOP_TYPE_KEY, 0, -1);
-        // 判断redis中是否有店铺类型信息
-        //如果有数据，转为List<ShopType>返回
-        if (shopTypesJson != null && shopTypesJson.size() > 0) {
-            List<ShopType> shopTypes = new ArrayList<>();
-            for (String shopTypeJson : shopTypesJson) {
-                shopTypes.add(JSONUtil.toBean(shopTypeJson, ShopType.class));
-            }
-            return Result.ok(shopTypes);
+        List<ShopType> shopTypes = getCatalog().getTypes();
+        if (shopTypes.isEmpty()) {
+            return Result.fail("店铺类型不存在");
         }
-        // 从数据库中查询店铺类型信息
+        return Result.ok(shopTypes);
+    }
+
+    @Override
+    public ShopTypeCatalog getCatalog() {
+        ShopTypeCatalog current = catalog;
+        return current != null ? current : refreshCatalog();
+    }
+
+    /**
+     * 从数据库重新加载商铺类型，内容没有变化时保留原来的目录
+     * 应用中没有修改商铺类型的接口，直接修改数据库后各节点最迟在一个刷新间隔后生效
+     */
+    @Override
+    @Scheduled(fixedDelayString = "${hmdp.shop-type.refresh-interval-ms:300000}",
+            initialDelayString = "${hmdp.shop-type.refresh-interval-ms:300000}")
+    public synchronized ShopTypeCatalog refreshCatalog() {
+        // 1.从数据库中查询店铺类型信息
         List<ShopType> shopTypes = query().orderByAsc("sort").list();
-        if (shopTypes != null && shopTypes.size() > 0) {
-            // 将店铺类型信息存入redis
-            for (ShopType shopType : shopTypes) {
-                redisTemplate.opsForList().rightPush(RedisConstants.CACHE_SHOP_TYPE_KEY, JSONUtil.toJsonStr(shopType));
-            }
-            return Result.ok(shopTypes);
+        // 2.预先序列化响应体，和接口直接返回Result时的json一致
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(shopTypes.isEmpty() ? Result.fail("店铺类型不存在") : Result.ok(shopTypes));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("序列化店铺类型失败", e);
+        }
+        String etag = "\"" + DigestUtil.md5Hex(body) + "\"";
+        // 3.内容没有变化，不替换
+        ShopTypeCatalog current = catalog;
+        if (current != null && current.getEtag().equals(etag)) {
+            return current;
         }
-        return Result.fail("店铺类型不存在");
+        catalog = new ShopTypeCatalog(current == null ? 1 : current.getVersion() + 1, shopTypes, body, etag);
+        log.debug("商铺类型目录已更新，版本：{}，ETag：{}", catalog.getVersion(), etag);
+        return catalog;
     }
 }
@@ -1,32 +1,47 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.VoucherOrderStatusDTO;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutCache;
 import com.hmdp.utils.UserHolder;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.NestedExceptionUtils;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -43,33 +58,138 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private final RedisIdWorker redisIdWorker;
     private final StringRedisTemplate redisTemplate;
     private final RedissonClient redissonClient;
+    private final SeckillSoldOutCache seckillSoldOutCache;
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> SECKILL_BORROW_SCRIPT;
+    private static final DefaultRedisScript<Long> DEAD_LETTER_SCRIPT;
+    // 优惠券的库存分片数，本地缓存几秒，之后再开启分片的优惠券也能读到
+    private final Cache<Long, Integer> stockShardCounts = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(10, TimeUnit.SECONDS)
+            .build();
+    // 代理对象，消费者线程中通过它调用事务方法
+    @Lazy
+    @Autowired
     private IVoucherOrderService proxy;
     // 阻塞队列
 //    private final BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    //异步处理线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //异步处理线程池，每个线程是消费者组中的一个消费者
+    private ExecutorService seckillOrderExecutor;
+    private volatile boolean running = true;
+
+    // 库存分片数上限，每个分片有自己的订单stream
+    @Value("${hmdp.seckill.max-stock-shards:8}")
+    private int maxStockShards;
+    // 每个节点的消费者数量
+    @Value("${hmdp.seckill.consumer.count:4}")
+    private int consumerCount;
+    // 每次XREADGROUP读取的消息数量
+    @Value("${hmdp.seckill.consumer.batch-size:20}")
+    private int batchSize;
+    // 组提交：最多攒够多少条订单写一次数据库
+    @Value("${hmdp.seckill.commit.batch-size:200}")
+    private int commitBatchSize;
+    // 组提交：第一批订单最多等待多久
+    @Value("${hmdp.seckill.commit.linger-ms:10}")
+    private long commitLingerMillis;
+    // 等待组提交完成的超时时间，超时的消息留在pending-list中
+    private static final long COMMIT_TIMEOUT_SECONDS = 10;
+    // 每次检查pending-list最多读取的页数
+    private static final int MAX_PENDING_PAGES = 10;
+    // 消费者提交给组提交线程的订单
+    private final BlockingQueue<OrderCommit> commitQueue = new LinkedBlockingQueue<>(1024);
+    // stream.orders的近似最大长度，需要远大于正常的消息积压量，否则未确认的消息会被裁剪掉
+    @Value("${hmdp.seckill.stream.max-length:1000000}")
+    private long streamMaxLength;
+    // 死信队列的近似最大长度
+    @Value("${hmdp.seckill.stream.dead-letter-max-length:100000}")
+    private long deadLetterMaxLength;
+    // 消息最多投递次数，超过后转入死信队列
+    @Value("${hmdp.seckill.retry.max-deliveries:5}")
+    private long maxDeliveries;
+    // 第一次重试的退避时间，之后每次翻倍
+    @Value("${hmdp.seckill.retry.backoff-ms:200}")
+    private long retryBackoffMillis;
+    // 最大退避时间
+    @Value("${hmdp.seckill.retry.max-backoff-ms:30000}")
+    private long maxRetryBackoffMillis;
+    // 订单状态在redis中的有效期
+    @Value("${hmdp.seckill.order-status-ttl-seconds:600}")
+    private long orderStatusTtlSeconds;
+    // 检查pending-list的间隔，用于接管宕机消费者的消息
+    @Value("${hmdp.seckill.retry.check-interval-ms:5000}")
+    private long pendingCheckIntervalMillis;
 
     @Autowired
     public VoucherOrderServiceImpl(
             ISeckillVoucherService seckillVoucherService, RedisIdWorker redisIdWorker,
-            StringRedisTemplate redisTemplate, RedissonClient redissonClient) {
+            StringRedisTemplate redisTemplate, RedissonClient redissonClient,
+            SeckillSoldOutCache seckillSoldOutCache) {
         this.seckillVoucherService = seckillVoucherService;
         this.redisIdWorker = redisIdWorker;
         this.redisTemplate = redisTemplate;
         this.redissonClient = redissonClient;
+        this.seckillSoldOutCache = seckillSoldOutCache;
     }
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+        SECKILL_BORROW_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BORROW_SCRIPT.setLocation(new ClassPathResource("seckill_borrow.lua"));
+        SECKILL_BORROW_SCRIPT.setResultType(Long.class);
+        DEAD_LETTER_SCRIPT = new DefaultRedisScript<>();
+        DEAD_LETTER_SCRIPT.setLocation(new ClassPathResource("seckill_dead_letter.lua"));
+        DEAD_LETTER_SCRIPT.setResultType(Long.class);
     }
 
     //在类初始化之后执行，因为当这个类初始化好了之后，随时都是有可能要执行的
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        List<String> queueNames = SeckillKeys.queueNames(maxStockShards);
+        queueNames.forEach(this::createGroupIfAbsent);
+        seckillOrderExecutor = Executors.newFixedThreadPool(
+                consumerCount + 1, ThreadUtil.newNamedThreadFactory("seckill-order-", true));
+        seckillOrderExecutor.submit(new VoucherOrderCommitter());
+        // 消费者名称：ip-pid-序号，保证集群内每个消费者唯一
+        String consumerPrefix = NetUtil.getLocalhostStr() + "-" + RuntimeUtil.getPid() + "-";
+        for (int i = 0; i < consumerCount; i++) {
+            // 所有消费者都读取stream.orders，每个分片stream只分配给一个消费者
+            List<String> queues = new ArrayList<>();
+            queues.add(RedisConstants.QUEUE_NAME);
+            for (int j = i + 1; j < queueNames.size(); j += consumerCount) {
+                queues.add(queueNames.get(j));
+            }
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerPrefix + i, queues));
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        seckillOrderExecutor.shutdown();
+    }
+
+    // 创建消费者组 XGROUP CREATE stream.orders g1 0 MKSTREAM，组已存在时忽略
+    private void createGroupIfAbsent(String queueName) {
+        try {
+            redisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                    "CREATE".getBytes(StandardCharsets.UTF_8),
+                    queueName.getBytes(StandardCharsets.UTF_8),
+                    RedisConstants.QUEUE_GROUP.getBytes(StandardCharsets.UTF_8),
+                    "0".getBytes(StandardCharsets.UTF_8),
+                    "MKSTREAM".getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            String message = NestedExceptionUtils.getMostSpecificCause(e).getMessage();
+            if (message == null || !message.contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
     }
 
     /*// 用于线程池处理的任务
@@ -91,70 +211,348 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }*/
 
     private class VoucherOrderHandler implements Runnable {
+
+        private final Consumer consumer;
+        // 读取的stream，第一个是stream.orders，其余是分配给这个消费者的分片stream
+        private final List<String> queues;
+        // 没有分片stream时阻塞读取stream.orders的时间可以长一些
+        private final Duration block;
+        private long nextPendingCheck = 0;
+
+        private VoucherOrderHandler(String consumerName, List<String> queues) {
+            this.consumer = Consumer.from(RedisConstants.QUEUE_GROUP, consumerName);
+            this.queues = queues;
+            this.block = queues.size() > 1 ? Duration.ofMillis(200) : Duration.ofSeconds(2);
+        }
+
         @Override
         public void run() {
-            while (true) {
+            while (running) {
                 try {
-                    // 1.获取消息队列中的订单信息
-                    List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(RedisConstants.QUEUE_NAME, ReadOffset.lastConsumed())
-                    );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有消息，继续下一次循环
-                        continue;
+                    // 0.定期处理pending-list中需要重试的消息
+                    if (System.currentTimeMillis() >= nextPendingCheck) {
+                        queues.forEach(queue -> handlePendingList(consumer, queue));
+                        nextPendingCheck = System.currentTimeMillis() + pendingCheckIntervalMillis;
                     }
-                    // 3.获取订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 4.创建订单
-                    createVoucherOrder(voucherOrder);
-                    // 5.确认消息 XACK
-                    redisTemplate.opsForStream().acknowledge(RedisConstants.QUEUE_NAME, "g1", record.getId());
+                    // 1.不阻塞地读取分片stream，集群中每个stream在不同的slot，只能逐个读取
+                    boolean idle = true;
+                    for (int i = 1; i < queues.size(); i++) {
+                        idle &= !readAndHandle(queues.get(i), null);
+                    }
+                    // 2.读取stream.orders，分片stream都没有消息时阻塞等待
+                    readAndHandle(RedisConstants.QUEUE_NAME, idle ? block : null);
                 } catch (Exception e) {
                     log.error("处理订单异常", e);
-                    //处理异常消息
-                    handlePendingList();
+                    nextPendingCheck = Math.min(nextPendingCheck, System.currentTimeMillis() + retryBackoffMillis);
                 }
             }
         }
+
+        // 批量获取消息队列中的订单信息 XREADGROUP GROUP g1 consumer COUNT n [BLOCK ms] STREAMS queue >
+        // 读到消息时返回true
+        private boolean readAndHandle(String queue, Duration block) {
+            StreamReadOptions options = StreamReadOptions.empty().count(batchSize);
+            List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(
+                    consumer,
+                    block == null ? options : options.block(block),
+                    StreamOffset.create(queue, ReadOffset.lastConsumed())
+            );
+            // 判断订单信息是否为空
+            if (list == null || list.isEmpty()) {
+                return false;
+            }
+            // 组提交创建订单，失败的消息留在pending-list中，退避后重试
+            if (!handleRecords(list, true)) {
+                nextPendingCheck = Math.min(nextPendingCheck, System.currentTimeMillis() + retryBackoffMillis);
+            }
+            return true;
+        }
     }
 
-    // 处理订单信息
-    private void handlePendingList() {
-        while (true) {
+    // 处理一批订单消息，成功的消息用一次XACK确认，全部成功时返回true
+    // groupCommit为true时整批交给组提交线程写库，否则逐条在独立事务中写库（用于隔离pending-list中的异常消息）
+    private boolean handleRecords(List<? extends MapRecord<String, ?, ?>> list, boolean groupCommit) {
+        List<RecordId> handled = new ArrayList<>(list.size());
+        List<VoucherOrder> orders = new ArrayList<>(list.size());
+        for (MapRecord<String, ?, ?> record : list) {
             try {
-                // 1.获取pending-list中的订单信息 XREAD GROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(
-                        Consumer.from("g1", "c1"),
-                        StreamReadOptions.empty().count(1),
-                        StreamOffset.create(RedisConstants.QUEUE_NAME, ReadOffset.from("0"))
-                );
-                // 2.判断订单信息是否为空
-                if (list == null || list.isEmpty()) {
-                    // 如果为null，说明没有异常消息，结束循环
-                    break;
-                }
                 // 解析数据
-                MapRecord<String, Object, Object> record = list.get(0);
-                Map<Object, Object> value = record.getValue();
+                Map<?, ?> value = record.getValue();
                 VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                // 3.创建订单
-                createVoucherOrder(voucherOrder);
-                // 4.确认消息 XACK
-                redisTemplate.opsForStream().acknowledge(RedisConstants.QUEUE_NAME, "g1", record.getId());
+                if (groupCommit) {
+                    orders.add(voucherOrder);
+                } else {
+                    // 创建订单并更新订单状态
+                    boolean created = proxy.createVoucherOrder(voucherOrder);
+                    saveOrderStatus(Collections.singletonList(voucherOrder),
+                            created ? VoucherOrderStatusDTO.CREATED : VoucherOrderStatusDTO.FAILED);
+                }
+                handled.add(record.getId());
+            } catch (Exception e) {
+                log.error("创建订单异常，消息id：" + record.getId(), e);
+            }
+        }
+        if (!orders.isEmpty()) {
+            OrderCommit commit = new OrderCommit(orders);
+            try {
+                if (!commitQueue.offer(commit, COMMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new TimeoutException("组提交队列已满");
+                }
+                commit.future.get(COMMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                commit.future.cancel(false);
+                Thread.currentThread().interrupt();
+                return false;
             } catch (Exception e) {
-                log.error("处理pending订单异常", e);
+                // 超时后取消，组提交线程还没有开始处理时会跳过这批订单，避免和pending-list的重试重复写库
+                commit.future.cancel(false);
+                // 整批不确认，留在pending-list中逐条重试
+                log.error("组提交订单异常", e);
+                return false;
+            }
+        }
+        // 确认消息 XACK stream.orders g1 id1 id2 ...，一批消息都来自同一个stream
+        if (!handled.isEmpty()) {
+            redisTemplate.opsForStream().acknowledge(
+                    list.get(0).getStream(), RedisConstants.QUEUE_GROUP, handled.toArray(new RecordId[0]));
+        }
+        return handled.size() == list.size();
+    }
+
+    // 一个消费者提交的一批订单，组提交完成后通知消费者确认消息
+    private static class OrderCommit {
+        private final List<VoucherOrder> orders;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private OrderCommit(List<VoucherOrder> orders) {
+            this.orders = orders;
+        }
+    }
+
+    // 组提交线程：攒够commitBatchSize条订单或等待commitLingerMillis后，在一个事务中写库
+    private class VoucherOrderCommitter implements Runnable {
+        @Override
+        public void run() {
+            List<OrderCommit> commits = new ArrayList<>();
+            while (running) {
                 try {
-                    Thread.sleep(20);
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
+                    // 1.等待第一批订单
+                    OrderCommit first = commitQueue.poll(2, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    commits.add(first);
+                    int size = first.orders.size();
+                    // 2.在linger时间内继续攒批
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(commitLingerMillis);
+                    while (size < commitBatchSize) {
+                        long remaining = deadline - System.nanoTime();
+                        OrderCommit next = remaining > 0 ? commitQueue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                        if (next == null) {
+                            break;
+                        }
+                        commits.add(next);
+                        size += next.orders.size();
+                    }
+                    // 3.一个事务写入整批订单
+                    commit(commits, size);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } finally {
+                    commits.clear();
+                }
+            }
+        }
+
+        private void commit(List<OrderCommit> commits, int size) {
+            // 消费者已经放弃等待的订单留给pending-list重试
+            commits.removeIf(commit -> commit.future.isDone());
+            if (commits.isEmpty()) {
+                return;
+            }
+            List<VoucherOrder> orders = new ArrayList<>(size);
+            for (OrderCommit commit : commits) {
+                orders.addAll(commit.orders);
+            }
+            List<VoucherOrder> failed;
+            try {
+                failed = proxy.createVoucherOrders(orders);
+                commits.forEach(commit -> commit.future.complete(null));
+            } catch (Exception e) {
+                commits.forEach(commit -> commit.future.completeExceptionally(e));
+                return;
+            }
+            // 更新订单状态
+            if (!failed.isEmpty()) {
+                orders.removeAll(failed);
+                saveOrderStatus(failed, VoucherOrderStatusDTO.FAILED);
+            }
+            saveOrderStatus(orders, VoucherOrderStatusDTO.CREATED);
+        }
+    }
+
+    // 处理pending-list：投递次数超过上限的消息转入死信队列，其余消息按投递次数指数退避后重试
+    // 查询的是整个消费者组的pending-list，宕机消费者的消息也会被接管
+    private void handlePendingList(Consumer consumer, String queue) {
+        // 1.分页获取pending-list中的消息 XPENDING stream.orders g1 start + count，直到凑够一批可以处理的消息
+        List<RecordId> retryIds = new ArrayList<>();
+        List<RecordId> deadIds = new ArrayList<>();
+        long minIdle = Long.MAX_VALUE;
+        Range<String> range = Range.unbounded();
+        for (int page = 0; page < MAX_PENDING_PAGES && retryIds.size() + deadIds.size() < batchSize; page++) {
+            PendingMessages pendingMessages = redisTemplate.opsForStream().pending(
+                    queue, RedisConstants.QUEUE_GROUP, range, batchSize);
+            // 2.按投递次数分为重试和死信两类，未到退避时间的消息跳过
+            for (PendingMessage pendingMessage : pendingMessages) {
+                long deliveries = pendingMessage.getTotalDeliveryCount();
+                long idle = pendingMessage.getElapsedTimeSinceLastDelivery().toMillis();
+                long claimIdle = claimIdle(deliveries, consumer.getName().equals(pendingMessage.getConsumerName()));
+                if (idle < claimIdle) {
+                    continue;
+                }
+                (deliveries >= maxDeliveries ? deadIds : retryIds).add(pendingMessage.getId());
+                minIdle = Math.min(minIdle, claimIdle);
+            }
+            if (pendingMessages.size() < batchSize) {
+                break;
+            }
+            // 下一页从最后一条消息的下一个id开始
+            RecordId last = pendingMessages.get(pendingMessages.size() - 1).getId();
+            range = Range.rightUnbounded(Range.Bound.inclusive(
+                    RecordId.of(last.getTimestamp(), last.getSequence() + 1).getValue()));
+        }
+        if (retryIds.isEmpty() && deadIds.isEmpty()) {
+            return;
+        }
+        // 3.重试：XCLAIM到当前消费者（投递次数+1），逐条在独立事务中创建订单
+        if (!retryIds.isEmpty()) {
+            List<StringRecord> records = claim(consumer, queue, minIdle, retryIds);
+            if (!records.isEmpty()) {
+                handleRecords(records, false);
+            }
+        }
+        // 4.死信：XCLAIM成功的消息转入死信队列
+        if (!deadIds.isEmpty()) {
+            for (StringRecord record : claim(consumer, queue, minIdle, deadIds)) {
+                moveToDeadLetter(queue, record);
+            }
+        }
+    }
+
+    // XCLAIM stream.orders g1 consumer minIdle id1 id2 ...，其它消费者已经接管的消息不会返回
+    private List<StringRecord> claim(Consumer consumer, String queue, long minIdle, List<RecordId> ids) {
+        List<StringRecord> records = redisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                ((StringRedisConnection) connection).xClaim(queue, RedisConstants.QUEUE_GROUP,
+                        consumer.getName(),
+                        RedisStreamCommands.XClaimOptions.minIdleMs(minIdle).ids(ids.toArray(new RecordId[0]))));
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        // 已经被MAXLEN裁剪掉的消息XCLAIM后没有内容，无法再处理，直接确认
+        if (records.size() < ids.size()) {
+            Set<RecordId> returned = records.stream().map(StringRecord::getId).collect(Collectors.toSet());
+            for (RecordId id : ids) {
+                if (returned.contains(id)) {
+                    continue;
+                }
+                PendingMessages mine = redisTemplate.opsForStream().pending(
+                        queue, consumer, Range.closed(id.getValue(), id.getValue()), 1);
+                if (!mine.isEmpty()) {
+                    log.error("订单消息已被裁剪，无法处理，消息id：" + id);
+                    redisTemplate.opsForStream().acknowledge(queue, RedisConstants.QUEUE_GROUP, id);
+                }
+            }
+        }
+        return records;
+    }
+
+    // 转入死信队列 stream.orders.dlq，并确认原消息；分片stream的死信队列带相同的hash tag
+    private void moveToDeadLetter(String queue, StringRecord record) {
+        List<String> args = new ArrayList<>();
+        args.add(RedisConstants.QUEUE_GROUP);
+        args.add(record.getId().getValue());
+        args.add(String.valueOf(deadLetterMaxLength));
+        record.getValue().forEach((field, value) -> {
+            args.add(field);
+            args.add(value);
+        });
+        redisTemplate.execute(DEAD_LETTER_SCRIPT,
+                Arrays.asList(queue, SeckillKeys.deadLetterQueueName(queue)),
+                args.toArray());
+        log.error("订单消息超过最大投递次数，已转入死信队列，消息id：" + record.getId());
+        // 订单状态改为失败
+        try {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            saveOrderStatus(Collections.singletonList(voucherOrder), VoucherOrderStatusDTO.FAILED);
+        } catch (Exception e) {
+            log.error("更新死信订单状态异常，消息id：" + record.getId(), e);
+        }
+    }
+
+    // 保存订单状态到redis，pipeline一次写入 order:status:{orderId}
+    private void saveOrderStatus(List<VoucherOrder> orders, String status) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        try {
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    String key = RedisConstants.ORDER_STATUS_KEY + order.getId();
+                    Map<String, String> value = new HashMap<>(4);
+                    value.put("status", status);
+                    value.put("userId", order.getUserId().toString());
+                    value.put("voucherId", order.getVoucherId().toString());
+                    stringConnection.hMSet(key, value);
+                    stringConnection.expire(key, orderStatusTtlSeconds);
                 }
+                return null;
+            });
+        } catch (Exception e) {
+            // 状态只用于查询，失败时查询会回落到数据库
+            log.error("保存订单状态异常", e);
+        }
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        // 1.查询redis中的订单状态
+        Map<Object, Object> status = redisTemplate.opsForHash().entries(RedisConstants.ORDER_STATUS_KEY + orderId);
+        if (!status.isEmpty()) {
+            // 2.只能查询自己的订单
+            if (!userId.toString().equals(status.get("userId"))) {
+                return Result.fail("订单不存在");
             }
+            return Result.ok(new VoucherOrderStatusDTO(
+                    orderId, Long.valueOf((String) status.get("voucherId")), (String) status.get("status")));
+        }
+        // 3.未命中，查询数据库
+        VoucherOrder voucherOrder = getById(orderId);
+        if (voucherOrder == null || !userId.equals(voucherOrder.getUserId())) {
+            return Result.fail("订单不存在");
+        }
+        // 4.写回redis，后续的轮询不再访问数据库
+        saveOrderStatus(Collections.singletonList(voucherOrder), VoucherOrderStatusDTO.CREATED);
+        return Result.ok(new VoucherOrderStatusDTO(orderId, voucherOrder.getVoucherId(), VoucherOrderStatusDTO.CREATED));
+    }
+
+    // 接管消息前消息至少空闲的时间
+    // 其它消费者的消息可能还在等待组提交：最多等待COMMIT_TIMEOUT_SECONDS放入队列、COMMIT_TIMEOUT_SECONDS等待结果，
+    // 加上攒批时间，超过这个时间说明那个消费者已经放弃或者宕机；当前消费者自己的消息只需要等待退避时间
+    private long claimIdle(long deliveries, boolean own) {
+        long backoff = retryBackoff(deliveries);
+        if (own) {
+            return backoff;
         }
+        return Math.max(backoff, 2 * TimeUnit.SECONDS.toMillis(COMMIT_TIMEOUT_SECONDS) + commitLingerMillis + 1000);
+    }
+
+    // 退避时间：backoff * 2^(deliveries-1)，不超过最大退避时间
+    private long retryBackoff(long deliveries) {
+        int shift = (int) Math.min(Math.max(deliveries - 1, 0), 20);
+        return Math.min(retryBackoffMillis << shift, maxRetryBackoffMillis);
     }
 
     /*// 处理订单信息
@@ -183,28 +581,114 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 0.本地已标记售罄，直接返回，不再访问redis
+        if (seckillSoldOutCache.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        // 订单id
+        // 订单id，通过售罄校验后再生成
         long orderId = redisIdWorker.nextId("order");
         // 1.执行lua脚本
+        int r = executeSeckill(voucherId, userId, orderId);
+        if (r == 6) {
+            // 1.1.库存未预热，从数据库预热后重试一次；秒杀开始后不会再从数据库预热
+            if (!seckillVoucherService.preheat(voucherId)) {
+                return Result.fail("秒杀券不存在或暂不可用");
+            }
+            r = executeSeckill(voucherId, userId, orderId);
+        }
+        // 2.判断结果是否为0
+        if (r != 0) {
+            // 2.1.库存不足，标记售罄并通知其它节点
+            if (r == 1) {
+                seckillSoldOutCache.markSoldOut(voucherId);
+            }
+            // 2.2.不为0 ，代表没有购买资格
+            return Result.fail(seckillFailMessage(r));
+        }
+        //3.返回订单id
+        return Result.ok(orderId);
+    }
+
+    // 执行秒杀脚本，库存分片的优惠券按用户路由到分片
+    // 返回 0：成功，1：库存不足，2：重复下单，4：尚未开始，5：已经结束，6：库存未预热
+    private int executeSeckill(Long voucherId, Long userId, long orderId) {
+        int shardCount = getStockShardCount(voucherId);
+        if (shardCount > 1) {
+            return seckillWithShards(voucherId, userId, orderId, shardCount);
+        }
         Long result = redisTemplate.execute(
                 SECKILL_SCRIPT,
                 Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
+                voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(streamMaxLength),
+                String.valueOf(orderStatusTtlSeconds)
         );
         assert result != null;
-        int r = result.intValue();
-        // 2.判断结果是否为0
-        if (r != 0) {
-            // 2.1.不为0 ，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+        return result.intValue();
+    }
+
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case 4:
+                return "秒杀尚未开始！";
+            case 5:
+                return "秒杀已经结束！";
+            default:
+                return "秒杀券不存在";
         }
+    }
 
-        //3.获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        //4.返回订单id
-        return Result.ok(orderId);
+    // 分片库存秒杀：先扣主分片，主分片没有库存时依次向其它分片借一个库存，并直接在那个分片下单
+    // 一人一单的记录始终保存在用户的主分片，所以借库存不影响去重
+    private int seckillWithShards(Long voucherId, Long userId, long orderId, int shardCount) {
+        // 1.订单状态的key和分片不在同一个slot，先保存为处理中；秒杀失败时订单id不会返回给用户，状态只会过期
+        VoucherOrder voucherOrder = new VoucherOrder().setId(orderId).setUserId(userId).setVoucherId(voucherId);
+        saveOrderStatus(Collections.singletonList(voucherOrder), VoucherOrderStatusDTO.PENDING);
+        // 2.主分片下单，库存不足时返回3并占住下单资格
+        int home = Math.floorMod(Long.hashCode(userId), shardCount);
+        int r = executeShardScript(voucherId, userId, orderId, home);
+        if (r != 3) {
+            return r;
+        }
+        // 3.借库存和下单在其它分片的同一个脚本中完成，借到即下单成功
+        for (int i = 1; i < shardCount; i++) {
+            int shard = (home + i) % shardCount;
+            Long borrowed = redisTemplate.execute(SECKILL_BORROW_SCRIPT,
+                    Arrays.asList(SeckillKeys.shardStockKey(voucherId, shard), SeckillKeys.shardQueueName(shard)),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId), String.valueOf(streamMaxLength));
+            if (borrowed != null && borrowed == 1) {
+                return 0;
+            }
+        }
+        // 4.所有分片都没有库存，释放主分片占住的下单资格
+        // 借库存期间节点宕机时下单资格不会释放，这个用户不能再下单，但不会丢失库存
+        redisTemplate.opsForSet().remove(SeckillKeys.shardOrderKey(voucherId, home), userId.toString());
+        return 1;
+    }
+
+    private int executeShardScript(Long voucherId, Long userId, long orderId, int shard) {
+        Long result = redisTemplate.execute(
+                SECKILL_SHARD_SCRIPT,
+                Arrays.asList(SeckillKeys.shardStockKey(voucherId, shard), SeckillKeys.shardOrderKey(voucherId, shard),
+                        SeckillKeys.shardQueueName(shard)),
+                voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(streamMaxLength)
+        );
+        assert result != null;
+        return result.intValue();
+    }
+
+    private int getStockShardCount(Long voucherId) {
+        return stockShardCounts.get(voucherId, id -> {
+            String count = redisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + id);
+            return count == null ? 1 : Integer.parseInt(count);
+        });
     }
 
     /*@Override
@@ -284,16 +768,22 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }*/
 
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 5.用户id
-        Long userId = UserHolder.getUser().getId();
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        // 5.用户id，在消费者线程中执行，不能从UserHolder中获取
+        Long userId = voucherOrder.getUserId();
         // 5.1一人一单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
+        VoucherOrder existing = query().select("id")
+                .eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId())
+                .last("LIMIT 1").one();
         //5.2判断是否已经购买过
-        if (count > 0) {
+        if (existing != null) {
+            //同一个订单重复投递，说明已经创建成功
+            if (existing.getId().equals(voucherOrder.getId())) {
+                return true;
+            }
             //已经购买过
             log.error("用户已经购买过了");
-            return;
+            return false;
         }
         //6.扣减库存
         boolean success = seckillVoucherService.update()
@@ -305,8 +795,74 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (!success) {
             //扣减库存
             log.error("库存不足");
-            return;
+            return false;
+        }
+        return save(voucherOrder);
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 没有创建成功的订单
+        List<VoucherOrder> failed = new ArrayList<>();
+        // 1.同一批次内按用户和优惠券去重（消息重复投递时会出现）
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            VoucherOrder previous = orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+            if (previous != null && !previous.getId().equals(voucherOrder.getId())) {
+                failed.add(voucherOrder);
+            }
+        }
+        // 2.一次查询过滤掉已经下过单的用户，保证一人一单
+        Set<Long> userIds = orderMap.values().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = orderMap.values().stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> existingOrders = query().select("id", "user_id", "voucher_id")
+                .in("user_id", userIds)
+                .in("voucher_id", voucherIds)
+                .list();
+        for (VoucherOrder existing : existingOrders) {
+            VoucherOrder voucherOrder = orderMap.remove(existing.getUserId() + ":" + existing.getVoucherId());
+            // 同一个订单重复投递时已经创建成功，否则是重复下单
+            if (voucherOrder != null && !voucherOrder.getId().equals(existing.getId())) {
+                failed.add(voucherOrder);
+            }
+        }
+        if (orderMap.isEmpty()) {
+            return failed;
+        }
+        // 3.按优惠券聚合扣减库存 stock = stock - k，按id排序更新避免多节点间死锁
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = orderMap.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.toList()));
+        List<VoucherOrder> toSave = new ArrayList<>(orderMap.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            int k = entry.getValue().size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", k)
+                    .update();
+            if (success) {
+                toSave.addAll(entry.getValue());
+                continue;
+            }
+            // 3.1剩余库存不足k时逐个扣减，库存扣完之前的订单仍然创建成功
+            List<VoucherOrder> orders = entry.getValue();
+            int created = 0;
+            while (created < k && seckillVoucherService.update()
+                    .setSql("stock = stock - 1")
+                    .eq("voucher_id", entry.getKey())
+                    .gt("stock", 0)
+                    .update()) {
+                created++;
+            }
+            toSave.addAll(orders.subList(0, created));
+            failed.addAll(orders.subList(created, k));
+            log.error("库存不足，优惠券id：" + entry.getKey() + "，订单数：" + k + "，创建成功：" + created);
+        }
+        // 4.一条多行insert写入订单
+        if (!toSave.isEmpty()) {
+            getBaseMapper().insertBatch(toSave);
         }
-        save(voucherOrder);
+        return failed;
     }
 }
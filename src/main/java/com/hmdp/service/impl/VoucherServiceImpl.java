@@ -7,9 +7,8 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -27,12 +26,16 @@ import java.util.List;
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
     private ISeckillVoucherService seckillVoucherService;
-    private StringRedisTemplate redisTemplate;
+    // 秒杀券库存分片数，大于1时库存拆分到多个key中
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+    // 库存分片数上限，超过时按上限分片，订单消费者只读取这些分片的stream
+    @Value("${hmdp.seckill.max-stock-shards:8}")
+    private int maxStockShards;
 
     @Autowired
-    public VoucherServiceImpl(ISeckillVoucherService seckillVoucherService, StringRedisTemplate redisTemplate) {
+    public VoucherServiceImpl(ISeckillVoucherService seckillVoucherService) {
         this.seckillVoucherService = seckillVoucherService;
-        this.redisTemplate = redisTemplate;
     }
 
     @Override
@@ -55,7 +58,7 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-//        保存到redis
-        redisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+//        保存库存和秒杀时间到redis
+        seckillVoucherService.saveStock2Redis(seckillVoucher, Math.min(stockShards, maxStockShards));
     }
 }
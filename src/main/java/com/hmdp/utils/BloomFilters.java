@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 2023/2/9 16:20
+ * 商铺和笔记id的布隆过滤器，防止查询不存在的id时穿透到redis和数据库
+ *
+ * @author tfqy
+ */
+
+@Component
+public class BloomFilters implements MessageListener {
+
+    private final RedisBloomFilter shopFilter;
+    private final RedisBloomFilter blogFilter;
+
+    public BloomFilters(StringRedisTemplate redisTemplate, CacheClient cacheClient,
+                        @Value("${hmdp.bloom.expected-insertions:1000000}") long expectedInsertions,
+                        @Value("${hmdp.bloom.fpp:0.01}") double fpp) {
+        this.shopFilter = new RedisBloomFilter("shop", expectedInsertions, fpp, redisTemplate);
+        this.blogFilter = new RedisBloomFilter("blog", expectedInsertions, fpp, redisTemplate);
+        // 按缓存key前缀注册，CacheClient查询前先检查id是否存在
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_KEY, shopFilter);
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_BLOG_KEY, blogFilter);
+    }
+
+    public RedisBloomFilter shop() {
+        return shopFilter;
+    }
+
+    public RedisBloomFilter blog() {
+        return blogFilter;
+    }
+
+    /**
+     * 接收其它节点的通知，消息格式为 过滤器名称:内容
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(':');
+        if (index < 0) {
+            return;
+        }
+        String name = body.substring(0, index);
+        String content = body.substring(index + 1);
+        if (shopFilter.getName().equals(name)) {
+            shopFilter.onMessage(content);
+        } else if (blogFilter.getName().equals(name)) {
+            blogFilter.onMessage(content);
+        }
+    }
+}
@@ -1,17 +1,34 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 /**
@@ -22,47 +39,173 @@ import java.util.function.Function;
 
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private static final DefaultRedisScript<byte[]> HOT_REPLICA_SCRIPT;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    static {
+        HOT_REPLICA_SCRIPT = new DefaultRedisScript<>();
+        HOT_REPLICA_SCRIPT.setLocation(new ClassPathResource("cache_hot_replica.lua"));
+        HOT_REPLICA_SCRIPT.setResultType(byte[].class);
+    }
+
+    // 本地缓存中代表空值的对象
+    private static final Object NULL_VALUE = new Object();
+
+    // 本地一级缓存，保存反序列化后的对象
+    private final Cache<String, Object> localCache;
+
+    // 正在重建的缓存，同一个key的并发查询共用一个结果
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    // 按缓存key前缀注册的布隆过滤器
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    // 本地缓存失效的次数，查询期间发生过失效则不回填本地缓存，避免写入旧数据
+    private final AtomicLong invalidations = new AtomicLong();
+
+    // 缓存值的编码和解码
+    private final CacheValueCodec valueCodec;
+
+    // 过期时间的随机浮动比例，避免同时写入的缓存同时过期
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+
+    // 提前重建的概率系数，越大越早重建
+    @Value("${hmdp.cache.xfetch.beta:1.0}")
+    private double xfetchBeta;
+
+    // 没有测量过重建耗时的缓存按这个耗时计算提前重建的概率
+    @Value("${hmdp.cache.xfetch.min-delta-ms:100}")
+    private long xfetchMinDelta;
+
+    private final CacheRebuildExecutor rebuildExecutor;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    private final CacheMetrics metrics;
+
+    // 热点key的本地副本，有效期很短，热点key的读请求大部分不再访问redis
+    private final Cache<String, Object> hotCache;
+
+    // 热点key在redis中的副本数量，读请求随机读取其中一个，分散对同一个key的访问
+    // 副本key带主key的hash tag，和主key在同一个slot，复制副本的脚本才能同时访问两个key
+    @Value("${hmdp.cache.hot-key.replicas:0}")
+    private int hotReplicas;
+
+    @Value("${hmdp.cache.hot-key.replica-ttl-seconds:60}")
+    private long hotReplicaTtlSeconds;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, CacheRebuildExecutor rebuildExecutor,
+                       HotKeyDetector hotKeyDetector, CacheMetrics metrics, List<CacheCodec> codecs,
+                       @Value("${hmdp.cache.codec:smile}") String codecName,
+                       @Value("${hmdp.cache.compress-threshold:1024}") int compressThreshold,
+                       @Value("${hmdp.cache.local.max-size:10000}") long localMaxSize,
+                       @Value("${hmdp.cache.local.ttl-seconds:30}") long localTtlSeconds,
+                       @Value("${hmdp.cache.hot-key.local-ttl-ms:1000}") long hotTtlMillis) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.rebuildExecutor = rebuildExecutor;
+        this.hotKeyDetector = hotKeyDetector;
+        this.metrics = metrics;
+        this.hotCache = Caffeine.newBuilder()
+                .maximumSize(1000)
+                .expireAfterWrite(hotTtlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        this.valueCodec = new CacheValueCodec(codecs, codecName, compressThreshold);
+        this.localCache = Caffeine.newBuilder()
+                .maximumSize(localMaxSize)
+                .expireAfterWrite(localTtlSeconds, TimeUnit.SECONDS)
+                .build();
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setBytes(key, encode(value), Expiration.milliseconds(jitter(unit.toMillis(time))));
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        setWithLogicalExpire(key, value, time, unit, 0);
+    }
+
+    /**
+     * @param rebuildMillis 查询数据库重建缓存的耗时，用于计算提前重建的概率
+     */
+    private void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, long rebuildMillis) {
+        // 设置逻辑过期，过期时间随机浮动
+        long expireAt = System.currentTimeMillis() + jitter(unit.toMillis(time));
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setBytes(key, encodeLogical(value, expireAt, Math.max(rebuildMillis, xfetchMinDelta)), Expiration.persistent());
+    }
+
+    /**
+     * 用管道批量写入缓存
+     *
+     * @param values key -> 对象
+     */
+    public void setBatch(Map<String, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long ttlMillis = unit.toMillis(time);
+        Map<byte[], byte[]> encoded = new HashMap<>(values.size() * 2);
+        values.forEach((key, value) -> encoded.put(key.getBytes(StandardCharsets.UTF_8), encode(value)));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            encoded.forEach((key, value) -> connection.set(key, value,
+                    Expiration.milliseconds(jitter(ttlMillis)), RedisStringCommands.SetOption.upsert()));
+            return null;
+        });
     }
 
+    private long jitter(long millis) {
+        long bound = (long) (millis * ttlJitter);
+        return bound <= 0 ? millis : millis + ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * 注册布隆过滤器，该前缀下不存在的id直接返回空，不再访问redis和数据库
+     */
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    private boolean mightExist(String keyPrefix, Object id) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter == null || !(id instanceof Number) || bloomFilter.mightContain(((Number) id).longValue());
+    }
+
+    @SuppressWarnings("unchecked")
     public <R, ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        return queryWithPassThrough(keyPrefix, id, type, dbFallback, time, unit, CacheMetrics.PASS_THROUGH);
+    }
+
+    /**
+     * @param strategy 记录指标时使用的查询策略
+     */
+    private <R, ID> R queryWithPassThrough(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit, String strategy) {
+        // 布隆过滤器判断id不存在，直接返回
+        if (!mightExist(keyPrefix, id)) {
+            metrics.request(keyPrefix, strategy, CacheMetrics.BLOOM_REJECT);
+            return null;
+        }
         String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        // 1.从redis查询商铺缓存，热点key先查本地副本
+        Object cached = readCache(keyPrefix, key, type, strategy);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
+        if (cached != null && cached != NULL_VALUE) {
             // 3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+            return (R) cached;
         }
         // 判断命中的是否是空值
-        if (json != null) {
+        if (cached != null) {
             // 返回一个错误信息
             return null;
         }
 
         // 4.不存在，根据id查询数据库
-        R r = dbFallback.apply(id);
+        R r = metrics.recordDbLoad(keyPrefix, strategy, () -> dbFallback.apply(id));
         // 5.不存在，返回错误
         if (r == null) {
             // 将空值写入redis
@@ -75,98 +218,374 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 批量查询：一次MGET查询redis，未命中的id一次查询数据库，再用管道批量写回redis
+     * 不经过本地缓存，返回的对象调用方可以修改
+     *
+     * @param dbBatchFallback 根据未命中的id批量查询数据库，返回 id -> 对象
+     * @return 按ids的顺序返回存在的对象
+     */
+    public <R, ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type,
+                                      Function<List<ID>, Map<ID, R>> dbBatchFallback, Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 1.布隆过滤器过滤掉不存在的id
+        List<ID> candidates = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            if (mightExist(keyPrefix, id)) {
+                candidates.add(id);
+            }
+        }
+        metrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.BLOOM_REJECT, ids.size() - candidates.size());
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 2.一次MGET查询redis
+        byte[][] keys = new byte[candidates.size()][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (keyPrefix + candidates.get(i)).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+        Map<ID, R> found = new HashMap<>(candidates.size() * 2);
+        List<ID> misses = new ArrayList<>();
+        int nullHits = 0;
+        for (int i = 0; i < keys.length; i++) {
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes == null) {
+                misses.add(candidates.get(i));
+            } else if (bytes.length > 0) {
+                found.put(candidates.get(i), decode(bytes, type));
+            } else {
+                nullHits++;
+            }
+        }
+        metrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.HIT, found.size());
+        metrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.NULL_HIT, nullHits);
+        metrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.MISS, misses.size());
+        // 3.未命中的id一次查询数据库，并用管道写回redis，不存在的id写入空值
+        if (!misses.isEmpty()) {
+            Map<ID, R> loaded = metrics.recordDbLoad(keyPrefix, CacheMetrics.BATCH, () -> dbBatchFallback.apply(misses));
+            long ttlMillis = unit.toMillis(time);
+            Expiration nullExpiration = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            List<byte[]> encoded = new ArrayList<>(misses.size());
+            for (ID id : misses) {
+                R r = loaded.get(id);
+                encoded.add(r == null ? new byte[0] : encode(r));
+                if (r != null) {
+                    found.put(id, r);
+                }
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < misses.size(); i++) {
+                    byte[] value = encoded.get(i);
+                    connection.set((keyPrefix + misses.get(i)).getBytes(StandardCharsets.UTF_8), value,
+                            value.length == 0 ? nullExpiration : Expiration.milliseconds(jitter(ttlMillis)),
+                            RedisStringCommands.SetOption.upsert());
+                }
+                return null;
+            });
+        }
+        // 4.按输入的顺序返回
+        List<R> result = new ArrayList<>(found.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 本地缓存 + redis两级缓存，本地未命中时按缓存穿透的方式查询redis和数据库
+     * 返回的对象会被多个请求共享，调用方不能修改
+     */
+    @SuppressWarnings("unchecked")
+    public <R, ID> R queryWithLocalCache(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 1.从本地缓存查询
+        Object cached = localCache.getIfPresent(key);
+        if (cached != null) {
+            metrics.request(keyPrefix, CacheMetrics.LOCAL, cached == NULL_VALUE ? CacheMetrics.NULL_HIT : CacheMetrics.LOCAL_HIT);
+            return cached == NULL_VALUE ? null : (R) cached;
+        }
+        // 2.未命中，查询redis和数据库，redis的查询结果记在local策略下，每次查询只记录一次
+        long version = invalidations.get();
+        R r = queryWithPassThrough(keyPrefix, id, type, dbFallback, time, unit, CacheMetrics.LOCAL);
+        // 3.写入本地缓存
+        if (version == invalidations.get()) {
+            localCache.put(key, r == null ? NULL_VALUE : r);
+        }
+        return r;
+    }
+
+    /**
+     * 删除缓存，并通知所有节点删除本地缓存
+     */
+    public void delete(String key) {
+        List<String> keys = new ArrayList<>(hotReplicas + 1);
+        keys.add(key);
+        for (int i = 0; i < hotReplicas; i++) {
+            keys.add(replicaKey(key, i));
+        }
+        try {
+            stringRedisTemplate.delete(keys);
+        } finally {
+            // redis删除失败也先失效本节点的本地缓存
+            invalidateLocal(key);
+        }
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 接收其它节点的缓存失效通知
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private void invalidateLocal(String key) {
+        invalidations.incrementAndGet();
+        localCache.invalidate(key);
+        hotCache.invalidate(key);
+    }
+
+    /**
+     * 读取redis中的缓存，热点key先读本地副本，再随机读取一个redis副本
+     *
+     * @return redis中不存在时返回null，缓存的是空值时返回NULL_VALUE
+     */
+    private Object readCache(String keyPrefix, String key, Class<?> type, String strategy) {
+        hotKeyDetector.record(key);
+        if (!hotKeyDetector.isHot(key)) {
+            byte[] bytes = getBytes(key);
+            Object value = bytes == null ? null : bytes.length == 0 ? NULL_VALUE : decode(bytes, type);
+            metrics.request(keyPrefix, strategy, result(value));
+            return value;
+        }
+        Object cached = hotCache.getIfPresent(key);
+        if (cached != null) {
+            metrics.request(keyPrefix, strategy, cached == NULL_VALUE ? CacheMetrics.NULL_HIT : CacheMetrics.HOT_HIT);
+            return cached;
+        }
+        long version = invalidations.get();
+        byte[] bytes = getHotBytes(key);
+        if (bytes == null) {
+            metrics.request(keyPrefix, strategy, CacheMetrics.MISS);
+            return null;
+        }
+        Object value = bytes.length == 0 ? NULL_VALUE : decode(bytes, type);
+        metrics.request(keyPrefix, strategy, result(value));
+        if (version == invalidations.get()) {
+            hotCache.put(key, value);
+        }
+        return value;
+    }
+
+    private static String result(Object value) {
+        return value == null ? CacheMetrics.MISS : value == NULL_VALUE ? CacheMetrics.NULL_HIT : CacheMetrics.HIT;
+    }
+
+    private byte[] getHotBytes(String key) {
+        if (hotReplicas <= 0) {
+            return getBytes(key);
+        }
+        String replicaKey = replicaKey(key, ThreadLocalRandom.current().nextInt(hotReplicas));
+        byte[] bytes = getBytes(replicaKey);
+        if (bytes == null) {
+            // 副本不存在，用脚本从主key复制一份，主key不存在时不写入副本
+            bytes = stringRedisTemplate.execute(HOT_REPLICA_SCRIPT, RedisSerializer.byteArray(), RedisSerializer.byteArray(),
+                    Arrays.asList(key, replicaKey), String.valueOf(hotReplicaTtlSeconds).getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes;
+    }
+
+    // {cache:shop:1}:replica:0
+    private static String replicaKey(String key, int index) {
+        return "{" + key + "}:replica:" + index;
+    }
+
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        hotKeyDetector.record(key);
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             // 3.存在，直接返回
+            metrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, bytes == null ? CacheMetrics.MISS : CacheMetrics.NULL_HIT);
             return null;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        // 4.命中，一次反序列化得到过期时间和对象
+        CacheValueCodec.LogicalEntry<R> entry = decodeLogical(bytes, type);
+        R r = entry.data;
+        // 5.判断是否过期，快过期时按概率提前重建（XFetch），重建越慢越早开始
+        long now = System.currentTimeMillis();
+        if (now - entry.rebuildMillis * xfetchBeta * Math.log(ThreadLocalRandom.current().nextDouble()) < entry.expireAt) {
             // 5.1.未过期，直接返回店铺信息
+            metrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.HIT);
+            return r;
+        }
+        metrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.STALE);
+        // 5.2.已过期或提前重建，需要缓存重建，本节点已经在重建时直接返回
+        if (rebuildExecutor.isRebuilding(key)) {
             return r;
         }
-        // 5.2.已过期，需要缓存重建
         // 6.缓存重建
         // 6.1.获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
+        String lockKey = RedisConstants.LOCK_CACHE_KEY + key;
         boolean isLock = tryLock(lockKey);
+        metrics.lock(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, isLock);
         // 6.2.判断是否获取锁成功
         if (isLock) {
-            // 6.3.成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 查询数据库
-                    R newR = dbFallback.apply(id);
-                    // 重建缓存
-                    this.setWithLogicalExpire(key, newR, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁
-                    unlock(lockKey);
-                }
-            });
+            // 6.3.成功，提交到重建线程池，热点key优先重建，其次是已经过期的
+            int priority = now < entry.expireAt ? CacheRebuildExecutor.PRIORITY_EARLY : CacheRebuildExecutor.PRIORITY_EXPIRED;
+            if (hotKeyDetector.isHot(key)) {
+                priority += CacheRebuildExecutor.PRIORITY_HOT;
+            }
+            boolean submitted = rebuildExecutor.submit(key, priority, () ->
+                    metrics.recordRebuild(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, () -> {
+                        // 查询数据库
+                        long begin = System.currentTimeMillis();
+                        R newR = metrics.recordDbLoad(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, () -> dbFallback.apply(id));
+                        // 重建缓存
+                        this.setWithLogicalExpire(key, newR, time, unit, System.currentTimeMillis() - begin);
+                        return newR;
+                    }), () -> unlock(lockKey));
+            if (!submitted) {
+                // 释放锁
+                unlock(lockKey);
+            }
         }
         // 6.4.返回过期的商铺信息
         return r;
     }
 
+    /**
+     * 互斥锁解决缓存击穿
+     * 同一节点内并发未命中同一个key时只有一个线程去竞争互斥锁并查询数据库，其它线程等待它的结果
+     */
+    @SuppressWarnings("unchecked")
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 布隆过滤器判断id不存在，直接返回
+        if (!mightExist(keyPrefix, id)) {
+            metrics.request(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.BLOOM_REJECT);
+            return null;
+        }
         String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        // 1.从redis查询商铺缓存，热点key先查本地副本
+        Object cached = readCache(keyPrefix, key, type, CacheMetrics.MUTEX);
         // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
+        if (cached != null && cached != NULL_VALUE) {
             // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+            return (R) cached;
         }
         // 判断命中的是否是空值
-        if (shopJson != null) {
+        if (cached != null) {
             // 返回一个错误信息
             return null;
         }
 
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        R r = null;
+        // 4.已有线程在重建缓存，等待它的结果
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> loading = inFlight.putIfAbsent(key, future);
+        if (loading != null) {
+            try {
+                return (R) loading.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+            }
+        }
+        // 5.由当前线程重建缓存
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
+            R r = rebuildWithMutex(keyPrefix, key, id, type, dbFallback, time, unit);
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private <R, ID> R rebuildWithMutex(
+            String keyPrefix, String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String lockKey = RedisConstants.LOCK_CACHE_KEY + key;
+        try {
+            while (true) {
+                // 1.获取互斥锁
+                boolean isLock = tryLock(lockKey);
+                metrics.lock(keyPrefix, CacheMetrics.MUTEX, isLock);
+                if (isLock) {
+                    // 重建耗时只统计持有锁的部分，不包括等待锁的时间
+                    try {
+                        return metrics.recordRebuild(keyPrefix, CacheMetrics.MUTEX, () -> {
+                            // 2.获取锁成功，再次检查redis，其它节点可能已经重建好了
+                            byte[] bytes = getBytes(key);
+                            if (bytes != null) {
+                                return bytes.length > 0 ? decode(bytes, type) : null;
+                            }
+                            // 3.根据id查询数据库
+                            R r = metrics.recordDbLoad(keyPrefix, CacheMetrics.MUTEX, () -> dbFallback.apply(id));
+                            // 4.不存在，将空值写入redis
+                            if (r == null) {
+                                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                                return null;
+                            }
+                            // 5.存在，写入redis
+                            this.set(key, r, time, unit);
+                            return r;
+                        });
+                    } finally {
+                        // 6.释放锁
+                        unlock(lockKey);
+                    }
+                }
+                // 7.锁被其它节点持有，休眠后检查它是否已经重建好
                 Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
-            }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-            // 5.不存在，返回错误
-            if (r == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
-                return null;
+                byte[] bytes = getBytes(key);
+                if (bytes != null) {
+                    return bytes.length > 0 ? decode(bytes, type) : null;
+                }
             }
-            // 6.存在，写入redis
-            this.set(key, r, time, unit);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        } finally {
-            // 7.释放锁
-            unlock(lockKey);
         }
-        // 8.返回
-        return r;
+    }
+
+    private byte[] getBytes(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    private void setBytes(String key, byte[] value, Expiration expiration) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    private byte[] encode(Object value) {
+        return valueCodec.encode(value);
+    }
+
+    private byte[] encodeLogical(Object value, long expireAt, long rebuildMillis) {
+        return valueCodec.encodeLogical(value, expireAt, rebuildMillis);
+    }
+
+    private <R> R decode(byte[] bytes, Class<R> type) {
+        return valueCodec.decode(bytes, type);
+    }
+
+    private <R> CacheValueCodec.LogicalEntry<R> decodeLogical(byte[] bytes, Class<R> type) {
+        return valueCodec.decodeLogical(bytes, type, xfetchMinDelta);
     }
 
     private boolean tryLock(String key) {
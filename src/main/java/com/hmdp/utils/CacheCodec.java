@@ -0,0 +1,28 @@
+package com.hmdp.utils;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * 2023/2/10 10:05
+ * 缓存值的编码方式，实现类注册为bean后CacheClient可以读取用它编码的缓存
+ *
+ * @author tfqy
+ */
+
+public interface CacheCodec {
+
+    /**
+     * 写在缓存头部的编码id，各实现不能重复，发布后不能修改
+     */
+    byte getId();
+
+    /**
+     * 编码名称，对应配置 hmdp.cache.codec
+     */
+    String getName();
+
+    byte[] encode(Object value) throws IOException;
+
+    Object decode(byte[] bytes, Type type) throws IOException;
+}
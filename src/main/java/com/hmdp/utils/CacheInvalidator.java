@@ -0,0 +1,123 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 2023/2/15 9:40
+ * 可靠的缓存失效：事务提交后立即在当前线程删除缓存，删除失败时异步重试，并延迟再删除一次，
+ * 覆盖并发读请求在更新期间把旧数据重新写回缓存的情况。各节点的本地缓存由CacheClient通过发布订阅失效
+ *
+ * @author tfqy
+ */
+
+@Slf4j
+@Component
+public class CacheInvalidator {
+
+    private final CacheClient cacheClient;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    // 删除缓存的最多尝试次数
+    @Value("${hmdp.cache.invalidation.max-attempts:5}")
+    private int maxAttempts;
+
+    // 第一次重试的退避时间，之后每次翻倍
+    @Value("${hmdp.cache.invalidation.backoff-ms:100}")
+    private long backoffMillis;
+
+    @Value("${hmdp.cache.invalidation.max-backoff-ms:5000}")
+    private long maxBackoffMillis;
+
+    // 延迟双删的间隔，应大于一次读数据库并写缓存的耗时，0表示不做第二次删除
+    @Value("${hmdp.cache.invalidation.double-delete-delay-ms:500}")
+    private long doubleDeleteDelayMillis;
+
+    private final Counter deletedCounter;
+    private final Counter retryCounter;
+    private final Counter failedCounter;
+    private final Counter droppedCounter;
+
+    public CacheInvalidator(CacheClient cacheClient, MeterRegistry meterRegistry,
+                            @Value("${hmdp.cache.invalidation.threads:2}") int threads) {
+        this.cacheClient = cacheClient;
+        this.executor = new ScheduledThreadPoolExecutor(threads,
+                ThreadUtil.newNamedThreadFactory("cache-invalidate-", true));
+        this.executor.setRemoveOnCancelPolicy(true);
+        Gauge.builder("cache.invalidation.pending", executor, e -> e.getQueue().size())
+                .description("等待执行的缓存删除任务数").register(meterRegistry);
+        this.deletedCounter = Counter.builder("cache.invalidation.deleted").register(meterRegistry);
+        this.retryCounter = Counter.builder("cache.invalidation.retry")
+                .description("删除失败后重试的次数").register(meterRegistry);
+        this.failedCounter = Counter.builder("cache.invalidation.failed")
+                .description("重试耗尽仍删除失败的次数").register(meterRegistry);
+        this.droppedCounter = Counter.builder("cache.invalidation.dropped")
+                .description("关闭时丢弃的未执行删除任务数").register(meterRegistry);
+    }
+
+    /**
+     * 删除缓存。在事务中调用时等事务提交后再删除，事务回滚则不删除
+     * 第一次删除在调用线程中执行，更新请求返回时缓存已经删除
+     */
+    public void invalidate(String key) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    deleteNow(key);
+                }
+            });
+        } else {
+            deleteNow(key);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        // 未执行的重试和第二次删除会丢失，记录数量便于排查旧缓存
+        List<Runnable> dropped = executor.shutdownNow();
+        if (!dropped.isEmpty()) {
+            droppedCounter.increment(dropped.size());
+            log.warn("关闭时丢弃{}个未执行的缓存删除任务，相关缓存可能在过期前保持旧数据", dropped.size());
+        }
+    }
+
+    private void deleteNow(String key) {
+        // 1.立即删除一次，失败时由线程池重试
+        delete(key, 1);
+        // 2.延迟再删除一次，清除更新期间被并发读请求写回的旧数据
+        if (doubleDeleteDelayMillis > 0) {
+            executor.schedule(() -> delete(key, 1), doubleDeleteDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void delete(String key, int attempt) {
+        try {
+            cacheClient.delete(key);
+            deletedCounter.increment();
+        } catch (Exception e) {
+            if (attempt >= maxAttempts) {
+                failedCounter.increment();
+                log.error("删除缓存失败，已尝试{}次：{}", attempt, key, e);
+                return;
+            }
+            retryCounter.increment();
+            long backoff = Math.min(backoffMillis << (attempt - 1), maxBackoffMillis);
+            log.warn("删除缓存失败，{}ms后重试：{}", backoff, key, e);
+            executor.schedule(() -> delete(key, attempt + 1), backoff, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 2023/2/14 10:15
+ * 缓存指标：按缓存key前缀和查询策略统计命中、未命中、空值命中、查询数据库耗时、锁竞争和重建耗时
+ * 指标通过 GET /actuator/prometheus 抓取
+ *
+ * @author tfqy
+ */
+
+@Component
+public class CacheMetrics {
+
+    // 查询策略
+    public static final String LOCAL = "local";
+    public static final String PASS_THROUGH = "pass_through";
+    public static final String MUTEX = "mutex";
+    public static final String LOGICAL_EXPIRE = "logical_expire";
+    public static final String BATCH = "batch";
+
+    // 查询结果
+    public static final String HIT = "hit";
+    // 命中本地一级缓存，local策略下的hit表示本地未命中、redis命中
+    public static final String LOCAL_HIT = "local_hit";
+    public static final String MISS = "miss";
+    // 命中缓存的空值
+    public static final String NULL_HIT = "null_hit";
+    // 命中热点key的本地副本
+    public static final String HOT_HIT = "hot_hit";
+    // 逻辑过期的缓存已过期或需要提前重建，返回旧数据
+    public static final String STALE = "stale";
+    // 被布隆过滤器拦截
+    public static final String BLOOM_REJECT = "bloom_reject";
+
+    private final MeterRegistry meterRegistry;
+
+    // 按名称和标签缓存已经注册的指标，避免每次查询都重新构建
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 记录一次缓存查询的结果
+     */
+    public void request(String keyPrefix, String strategy, String result) {
+        request(keyPrefix, strategy, result, 1);
+    }
+
+    public void request(String keyPrefix, String strategy, String result, long count) {
+        if (count <= 0) {
+            return;
+        }
+        counters.computeIfAbsent("cache.requests|" + keyPrefix + "|" + strategy + "|" + result,
+                k -> Counter.builder("cache.requests")
+                        .description("缓存查询次数")
+                        .tag("prefix", keyPrefix)
+                        .tag("strategy", strategy)
+                        .tag("result", result)
+                        .register(meterRegistry))
+                .increment(count);
+    }
+
+    /**
+     * 记录一次获取重建锁的结果，获取失败说明有其它线程或节点在重建
+     */
+    public void lock(String keyPrefix, String strategy, boolean acquired) {
+        String result = acquired ? "acquired" : "contended";
+        counters.computeIfAbsent("cache.lock|" + keyPrefix + "|" + strategy + "|" + result,
+                k -> Counter.builder("cache.lock")
+                        .description("缓存重建锁获取次数")
+                        .tag("prefix", keyPrefix)
+                        .tag("strategy", strategy)
+                        .tag("result", result)
+                        .register(meterRegistry))
+                .increment();
+    }
+
+    /**
+     * 统计缓存未命中时查询数据库的耗时
+     */
+    public <T> T recordDbLoad(String keyPrefix, String strategy, Supplier<T> loader) {
+        return timer("cache.db.load", "缓存未命中时查询数据库的耗时", keyPrefix, strategy).record(loader);
+    }
+
+    /**
+     * 统计缓存重建的耗时，包括查询数据库和写入redis
+     */
+    public <T> T recordRebuild(String keyPrefix, String strategy, Supplier<T> rebuild) {
+        return timer("cache.rebuild", "缓存重建耗时", keyPrefix, strategy).record(rebuild);
+    }
+
+    private Timer timer(String name, String description, String keyPrefix, String strategy) {
+        return timers.computeIfAbsent(name + "|" + keyPrefix + "|" + strategy,
+                k -> Timer.builder(name)
+                        .description(description)
+                        .tag("prefix", keyPrefix)
+                        .tag("strategy", strategy)
+                        .publishPercentileHistogram()
+                        .register(meterRegistry));
+    }
+}
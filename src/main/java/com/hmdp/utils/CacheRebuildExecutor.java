@@ -0,0 +1,144 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 2023/2/11 14:30
+ * 缓存重建线程池：队列有界，同一个key同时只有一个重建任务，优先级高的先执行，排队太久的任务直接丢弃
+ *
+ * @author tfqy
+ */
+
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    // 已经过期的缓存，读到的是旧数据，优先重建
+    public static final int PRIORITY_EXPIRED = 1;
+    // 还未过期，提前重建
+    public static final int PRIORITY_EARLY = 0;
+    // 热点key在上面的优先级上再加上这个值，优先于所有非热点key重建
+    public static final int PRIORITY_HOT = 2;
+
+    private final ThreadPoolExecutor executor;
+
+    // 排队或执行中的任务
+    private final Map<String, RebuildTask> inFlight = new ConcurrentHashMap<>();
+
+    // 任务提交顺序，优先级相同时先提交的先执行
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final int queueCapacity;
+    private final long maxWaitMillis;
+
+    private final Counter failedCounter;
+    private final Counter rejectedCounter;
+    private final Counter droppedCounter;
+
+    public CacheRebuildExecutor(MeterRegistry meterRegistry,
+                                @Value("${hmdp.cache.rebuild.threads:4}") int threads,
+                                @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity,
+                                @Value("${hmdp.cache.rebuild.max-wait-ms:5000}") long maxWaitMillis) {
+        this.queueCapacity = queueCapacity;
+        this.maxWaitMillis = maxWaitMillis;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), ThreadUtil.newNamedThreadFactory("cache-rebuild-", true));
+        Gauge.builder("cache.rebuild.queue", executor, e -> e.getQueue().size())
+                .description("排队中的缓存重建任务数").register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("执行中的缓存重建任务数").register(meterRegistry);
+        this.failedCounter = Counter.builder("cache.rebuild.failed").register(meterRegistry);
+        this.rejectedCounter = Counter.builder("cache.rebuild.rejected")
+                .description("队列已满被拒绝的任务数").register(meterRegistry);
+        this.droppedCounter = Counter.builder("cache.rebuild.dropped")
+                .description("排队超时被丢弃的任务数").register(meterRegistry);
+    }
+
+    /**
+     * 是否已有这个key的重建任务
+     */
+    public boolean isRebuilding(String key) {
+        return inFlight.containsKey(key);
+    }
+
+    /**
+     * 提交重建任务
+     *
+     * @param onFinish 任务执行、丢弃或失败后都会执行，用于释放锁
+     * @return 已有同一个key的任务或队列已满时返回false，任务不会执行，onFinish也不会执行
+     */
+    public boolean submit(String key, int priority, Runnable rebuild, Runnable onFinish) {
+        if (executor.getQueue().size() >= queueCapacity) {
+            rejectedCounter.increment();
+            log.warn("缓存重建队列已满，放弃重建：{}", key);
+            return false;
+        }
+        RebuildTask task = new RebuildTask(key, priority, rebuild, onFinish);
+        if (inFlight.putIfAbsent(key, task) != null) {
+            return false;
+        }
+        executor.execute(task);
+        return true;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String key;
+        private final int priority;
+        private final long seq = sequence.incrementAndGet();
+        private final long submitTime = System.currentTimeMillis();
+        private final Runnable rebuild;
+        private final Runnable onFinish;
+
+        private RebuildTask(String key, int priority, Runnable rebuild, Runnable onFinish) {
+            this.key = key;
+            this.priority = priority;
+            this.rebuild = rebuild;
+            this.onFinish = onFinish;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // 排队太久，缓存可能已经被其它节点重建，丢弃，之后的请求会重新提交
+                if (System.currentTimeMillis() - submitTime > maxWaitMillis) {
+                    droppedCounter.increment();
+                    log.debug("缓存重建任务排队超时，丢弃：{}", key);
+                    return;
+                }
+                // 重建耗时由调用方按前缀和策略统计
+                rebuild.run();
+            } catch (Exception e) {
+                failedCounter.increment();
+                log.error("缓存重建异常：{}", key, e);
+            } finally {
+                inFlight.remove(key, this);
+                onFinish.run();
+            }
+        }
+
+        @Override
+        public int compareTo(RebuildTask other) {
+            int result = Integer.compare(other.priority, priority);
+            return result != 0 ? result : Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.hmdp.utils;
+
+/**
+ * 2023/2/16 10:00
+ * 缓存查询策略，对应CacheClient的各个查询方法
+ *
+ * @author tfqy
+ */
+
+public enum CacheStrategy {
+
+    /**
+     * 本地缓存 + redis两级缓存，返回的对象会被多个请求共享，调用方不能修改
+     */
+    LOCAL,
+
+    /**
+     * 缓存空值解决缓存穿透
+     */
+    PASS_THROUGH,
+
+    /**
+     * 互斥锁解决缓存击穿
+     */
+    MUTEX,
+
+    /**
+     * 逻辑过期解决缓存击穿，缓存需要提前预热，不存在时直接返回空
+     */
+    LOGICAL_EXPIRE
+}
@@ -0,0 +1,186 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 2023/2/22 15:30
+ * 缓存值的二进制格式：头部 + 编码后的值，超过阈值时压缩，兼容没有头部的旧json缓存
+ *
+ * @author tfqy
+ */
+
+class CacheValueCodec {
+
+    // 缓存头部：魔数 + 版本 + 编码id + 标志位，没有这个头部的是旧的json缓存
+    static final byte MAGIC = (byte) 0xCA;
+    static final byte VERSION = 1;
+    static final int HEADER_LENGTH = 4;
+    // 逻辑过期的缓存：头部之后是逻辑过期时间（毫秒时间戳）和上次重建耗时（毫秒），不用解析值就能判断是否需要重建
+    static final byte VERSION_LOGICAL = 2;
+    static final int LOGICAL_HEADER_LENGTH = HEADER_LENGTH + 8 + 4;
+    static final byte FLAG_GZIP = 1;
+
+    // 按编码id查找，读取时支持所有已注册的编码
+    private final Map<Byte, CacheCodec> codecs = new HashMap<>();
+
+    // 写入时使用的编码
+    private final CacheCodec codec;
+
+    // 超过这个字节数的值压缩后写入
+    private final int compressThreshold;
+
+    CacheValueCodec(List<CacheCodec> codecs, String codecName, int compressThreshold) {
+        for (CacheCodec cacheCodec : codecs) {
+            if (this.codecs.put(cacheCodec.getId(), cacheCodec) != null) {
+                throw new IllegalStateException("缓存编码id重复：" + cacheCodec.getId());
+            }
+        }
+        this.codec = codecs.stream().filter(c -> c.getName().equals(codecName)).findFirst()
+                .orElseThrow(() -> new IllegalStateException("不支持的缓存编码：" + codecName));
+        this.compressThreshold = compressThreshold;
+    }
+
+    /**
+     * 编码为 头部 + 编码后的值，超过阈值时压缩
+     */
+    byte[] encode(Object value) {
+        return encode(value, VERSION, 0, 0);
+    }
+
+    byte[] encodeLogical(Object value, long expireAt, long rebuildMillis) {
+        return encode(value, VERSION_LOGICAL, expireAt, (int) Math.min(rebuildMillis, Integer.MAX_VALUE));
+    }
+
+    private byte[] encode(Object value, byte version, long expireAt, int rebuildMillis) {
+        try {
+            byte[] payload = codec.encode(value);
+            byte flags = 0;
+            if (payload.length > compressThreshold) {
+                payload = gzip(payload);
+                flags |= FLAG_GZIP;
+            }
+            int headerLength = version == VERSION_LOGICAL ? LOGICAL_HEADER_LENGTH : HEADER_LENGTH;
+            ByteBuffer buffer = ByteBuffer.allocate(headerLength + payload.length)
+                    .put(MAGIC).put(version).put(codec.getId()).put(flags);
+            if (version == VERSION_LOGICAL) {
+                buffer.putLong(expireAt).putInt(rebuildMillis);
+            }
+            return buffer.put(payload).array();
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存编码失败", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    <R> R decode(byte[] bytes, Class<R> type) {
+        if (!hasHeader(bytes)) {
+            // 旧的json缓存
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+        }
+        return (R) decodePayload(bytes, type);
+    }
+
+    /**
+     * @param defaultRebuildMillis 头部中没有重建耗时的旧缓存使用的重建耗时
+     */
+    @SuppressWarnings("unchecked")
+    <R> LogicalEntry<R> decodeLogical(byte[] bytes, Class<R> type, long defaultRebuildMillis) {
+        RedisData<R> redisData;
+        if (!hasHeader(bytes)) {
+            // 旧的json缓存，需要分两次反序列化
+            redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+            redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+        } else if (bytes[1] == VERSION_LOGICAL) {
+            // 过期时间直接从头部读取
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, HEADER_LENGTH, LOGICAL_HEADER_LENGTH - HEADER_LENGTH);
+            long expireAt = buffer.getLong();
+            int rebuildMillis = buffer.getInt();
+            return new LogicalEntry<>((R) decodePayload(bytes, type), expireAt, rebuildMillis);
+        } else {
+            // 第1版头部是set()写入的普通缓存，没有逻辑过期时间
+            throw new IllegalStateException("不是逻辑过期的缓存，版本：" + bytes[1]);
+        }
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return new LogicalEntry<>(redisData.getData(), expireAt, defaultRebuildMillis);
+    }
+
+    private static boolean hasHeader(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+
+    private Object decodePayload(byte[] bytes, Type type) {
+        int headerLength;
+        if (bytes[1] == VERSION) {
+            headerLength = HEADER_LENGTH;
+        } else if (bytes[1] == VERSION_LOGICAL) {
+            headerLength = LOGICAL_HEADER_LENGTH;
+        } else {
+            throw new IllegalStateException("不支持的缓存版本：" + bytes[1]);
+        }
+        CacheCodec cacheCodec = codecs.get(bytes[2]);
+        if (cacheCodec == null) {
+            throw new IllegalStateException("不支持的缓存编码：" + bytes[2]);
+        }
+        try {
+            byte[] payload = Arrays.copyOfRange(bytes, headerLength, bytes.length);
+            if ((bytes[3] & FLAG_GZIP) != 0) {
+                payload = gunzip(payload);
+            }
+            return cacheCodec.decode(payload, type);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存解码失败", e);
+        }
+    }
+
+    /**
+     * 逻辑过期的缓存值
+     */
+    static class LogicalEntry<R> {
+        final R data;
+        final long expireAt;
+        final long rebuildMillis;
+
+        private LogicalEntry(R data, long expireAt, long rebuildMillis) {
+            this.data = data;
+            this.expireAt = expireAt;
+            this.rebuildMillis = rebuildMillis;
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+        try (OutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = gzip.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,221 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * 2023/2/12 10:40
+ * 启动时预热缓存：热门商铺、商铺类型、商铺地理位置和未结束的秒杀券
+ * 预热完成前readiness探针返回OUT_OF_SERVICE，也可以通过 POST /actuator/cachewarm 手动预热
+ *
+ * @author tfqy
+ */
+
+@Slf4j
+@Component
+@Endpoint(id = "cachewarm")
+public class CacheWarmer implements HealthIndicator {
+
+    private final IShopService shopService;
+    private final IShopTypeService shopTypeService;
+    private final ISeckillVoucherService seckillVoucherService;
+    private final CacheClient cacheClient;
+    private final StringRedisTemplate redisTemplate;
+
+    private final ExecutorService warmExecutor;
+
+    private final AtomicBoolean warming = new AtomicBoolean(false);
+
+    // 至少完成过一次预热
+    private volatile boolean warmed;
+
+    // 最近一次预热的结果
+    private volatile Map<String, Object> lastResult = new LinkedHashMap<>();
+
+    @Value("${hmdp.warm.enabled:true}")
+    private boolean enabled;
+
+    // 预热销量和评分最高的前N个商铺
+    @Value("${hmdp.warm.shop-top-n:1000}")
+    private int shopTopN;
+
+    // 每次从数据库读取的条数
+    @Value("${hmdp.warm.page-size:200}")
+    private int pageSize;
+
+    public CacheWarmer(IShopService shopService, IShopTypeService shopTypeService,
+                       ISeckillVoucherService seckillVoucherService, CacheClient cacheClient,
+                       StringRedisTemplate redisTemplate, @Value("${hmdp.warm.threads:4}") int threads) {
+        this.shopService = shopService;
+        this.shopTypeService = shopTypeService;
+        this.seckillVoucherService = seckillVoucherService;
+        this.cacheClient = cacheClient;
+        this.redisTemplate = redisTemplate;
+        this.warmExecutor = Executors.newFixedThreadPool(threads, ThreadUtil.newNamedThreadFactory("cache-warm-", true));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!enabled) {
+            warmed = true;
+            return;
+        }
+        warmAsync();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        warmExecutor.shutdownNow();
+    }
+
+    /**
+     * 手动预热，已经在预热时不会重复执行
+     */
+    @WriteOperation
+    public Map<String, Object> warm() {
+        Map<String, Object> status = status();
+        status.put("started", warmAsync());
+        return status;
+    }
+
+    @ReadOperation
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("warming", warming.get());
+        status.put("warmed", warmed);
+        status.put("lastResult", lastResult);
+        return status;
+    }
+
+    @Override
+    public Health health() {
+        if (warmed) {
+            return Health.up().withDetails(lastResult).build();
+        }
+        return Health.outOfService().withDetail("warming", warming.get()).build();
+    }
+
+    private boolean warmAsync() {
+        if (!warming.compareAndSet(false, true)) {
+            return false;
+        }
+        ThreadUtil.newThread(this::warmAll, "cache-warmer", true).start();
+        return true;
+    }
+
+    private void warmAll() {
+        long begin = System.currentTimeMillis();
+        Map<String, CompletableFuture<Integer>> tasks = new LinkedHashMap<>();
+        try {
+            // 1.热门商铺，按页并行查询和写入
+            List<CompletableFuture<Integer>> shopPages = new ArrayList<>();
+            for (int offset = 0; offset < shopTopN; offset += pageSize) {
+                int pageOffset = offset;
+                int size = Math.min(pageSize, shopTopN - offset);
+                shopPages.add(submit(() -> warmShopPage(pageOffset, size)));
+            }
+            tasks.put("shops", CompletableFuture.allOf(shopPages.toArray(new CompletableFuture[0]))
+                    .thenApply(v -> shopPages.stream().mapToInt(CompletableFuture::join).sum()));
+            // 2.商铺类型
+            tasks.put("shopTypes", submit(() -> shopTypeService.refreshCatalog().getTypes().size()));
+            // 3.商铺地理位置
+            tasks.put("shopGeo", submit(this::warmShopGeo));
+            // 4.未结束的秒杀券
+            tasks.put("seckillVouchers", submit(() -> {
+                seckillVoucherService.preheatActiveVouchers();
+                return 1;
+            }));
+            // 5.等待全部完成，单项失败不影响其它项
+            Map<String, Object> result = new LinkedHashMap<>();
+            tasks.forEach((name, task) -> {
+                try {
+                    result.put(name, task.join());
+                } catch (Exception e) {
+                    log.error("预热{}异常", name, e);
+                    result.put(name, "failed");
+                }
+            });
+            result.put("costMillis", System.currentTimeMillis() - begin);
+            lastResult = result;
+            log.info("缓存预热完成：{}", result);
+        } finally {
+            // 预热失败也不阻止接收请求，只是缓存是冷的
+            warmed = true;
+            warming.set(false);
+        }
+    }
+
+    private CompletableFuture<Integer> submit(Supplier<Integer> task) {
+        return CompletableFuture.supplyAsync(task, warmExecutor);
+    }
+
+    private int warmShopPage(int offset, int size) {
+        List<Shop> shops = shopService.query()
+                .orderByDesc("sold").orderByDesc("score").orderByAsc("id")
+                .last("LIMIT " + offset + "," + size)
+                .list();
+        cacheClient.setBatch(shops.stream().collect(Collectors.toMap(
+                        shop -> RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop -> shop)),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return shops.size();
+    }
+
+    // 按id分页读取所有商铺的坐标，按类型用管道写入geo
+    private int warmShopGeo() {
+        int count = 0;
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = shopService.query()
+                    .select("id", "type_id", "x", "y")
+                    .gt("id", lastId).orderByAsc("id")
+                    .last("LIMIT " + pageSize)
+                    .list();
+            if (shops.isEmpty()) {
+                return count;
+            }
+            Map<Long, List<RedisGeoCommands.GeoLocation<String>>> locations = shops.stream()
+                    .filter(shop -> shop.getTypeId() != null && shop.getX() != null && shop.getY() != null)
+                    .collect(Collectors.groupingBy(Shop::getTypeId, Collectors.mapping(
+                            shop -> new RedisGeoCommands.GeoLocation<>(shop.getId().toString(),
+                                    new Point(shop.getX(), shop.getY())), Collectors.toList())));
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                locations.forEach((typeId, list) ->
+                        ((StringRedisConnection) connection).geoAdd(RedisConstants.SHOP_GEO_KEY + typeId, list));
+                return null;
+            });
+            count += shops.size();
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+    }
+}
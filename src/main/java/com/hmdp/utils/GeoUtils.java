@@ -0,0 +1,31 @@
+package com.hmdp.utils;
+
+/**
+ * 2023/2/18 10:10
+ * 经纬度距离计算，和redis GEO使用相同的地球半径，结果一致
+ *
+ * @author tfqy
+ */
+
+public class GeoUtils {
+
+    // 地球半径，单位米
+    static final double EARTH_RADIUS = 6372797.560856;
+
+    private GeoUtils() {
+    }
+
+    /**
+     * 两个坐标之间的距离，单位米
+     *
+     * @param x1 经度
+     * @param y1 纬度
+     */
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2.0 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+}
@@ -0,0 +1,108 @@
+package com.hmdp.utils;
+
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.AfterReturning;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 2023/2/16 10:20
+ * 处理@HmdpCacheable和@HmdpCacheEvict，按注解指定的策略调用CacheClient
+ *
+ * @author tfqy
+ */
+
+@Aspect
+@Component
+public class HmdpCacheAspect {
+
+    private final CacheClient cacheClient;
+    private final CacheInvalidator cacheInvalidator;
+
+    private final ExpressionParser parser = new SpelExpressionParser();
+    private final ParameterNameDiscoverer parameterNameDiscoverer = new DefaultParameterNameDiscoverer();
+
+    // 解析过的key表达式
+    private final Map<String, Expression> expressions = new ConcurrentHashMap<>();
+
+    public HmdpCacheAspect(CacheClient cacheClient, CacheInvalidator cacheInvalidator) {
+        this.cacheClient = cacheClient;
+        this.cacheInvalidator = cacheInvalidator;
+    }
+
+    @Around("@annotation(cacheable)")
+    @SuppressWarnings("unchecked")
+    public Object cacheable(ProceedingJoinPoint joinPoint, HmdpCacheable cacheable) throws Throwable {
+        Method method = getMethod(joinPoint);
+        // 1.计算缓存key，为空时直接查询数据库
+        Object id = evaluateKey(cacheable.key(), method, joinPoint.getArgs(), null);
+        if (id == null) {
+            return joinPoint.proceed();
+        }
+        // 2.按指定的策略查询缓存，未命中时执行方法本身查询数据库
+        Class<Object> type = (Class<Object>) method.getReturnType();
+        Object[] args = joinPoint.getArgs();
+        Function<Object, Object> dbFallback = key -> proceed(joinPoint, args);
+        switch (cacheable.strategy()) {
+            case LOCAL:
+                return cacheClient.queryWithLocalCache(cacheable.prefix(), id, type, dbFallback,
+                        cacheable.ttl(), cacheable.unit());
+            case MUTEX:
+                return cacheClient.queryWithMutex(cacheable.prefix(), id, type, dbFallback,
+                        cacheable.ttl(), cacheable.unit());
+            case LOGICAL_EXPIRE:
+                return cacheClient.queryWithLogicalExpire(cacheable.prefix(), id, type, dbFallback,
+                        cacheable.ttl(), cacheable.unit());
+            case PASS_THROUGH:
+            default:
+                return cacheClient.queryWithPassThrough(cacheable.prefix(), id, type, dbFallback,
+                        cacheable.ttl(), cacheable.unit());
+        }
+    }
+
+    @AfterReturning(pointcut = "@annotation(evict)", returning = "result")
+    public void evict(JoinPoint joinPoint, HmdpCacheEvict evict, Object result) {
+        Object id = evaluateKey(evict.key(), getMethod(joinPoint), joinPoint.getArgs(), result);
+        if (id != null) {
+            cacheInvalidator.invalidate(evict.prefix() + id);
+        }
+    }
+
+    private static Method getMethod(JoinPoint joinPoint) {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        // 接口上的方法没有参数名，取实现类上的方法
+        return AopUtils.getMostSpecificMethod(method, joinPoint.getTarget().getClass());
+    }
+
+    private Object evaluateKey(String key, Method method, Object[] args, Object result) {
+        MethodBasedEvaluationContext context =
+                new MethodBasedEvaluationContext(null, method, args, parameterNameDiscoverer);
+        context.setVariable("result", result);
+        return expressions.computeIfAbsent(key, parser::parseExpression).getValue(context);
+    }
+
+    private static Object proceed(ProceedingJoinPoint joinPoint, Object[] args) {
+        try {
+            return joinPoint.proceed(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 2023/2/16 10:10
+ * 方法正常返回后删除缓存，在事务中时等事务提交后再删除，失败时重试，并延迟再删除一次
+ *
+ * @author tfqy
+ */
+
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface HmdpCacheEvict {
+
+    /**
+     * 缓存key前缀，如 RedisConstants.CACHE_SHOP_KEY
+     */
+    String prefix();
+
+    /**
+     * 缓存key的SpEL表达式，如 #shop.id，可以用 #result 引用返回值，值为空时不删除
+     */
+    String key();
+}
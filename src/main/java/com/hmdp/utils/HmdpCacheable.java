@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 2023/2/16 10:05
+ * 按指定的策略缓存方法的返回值，缓存key为 prefix + key表达式的值，方法本身作为查询数据库的逻辑
+ * 返回值类型不能是泛型，返回的对象可能被多个请求共享，同一个类内部调用时需要通过AopContext.currentProxy()调用
+ *
+ * @author tfqy
+ */
+
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface HmdpCacheable {
+
+    /**
+     * 缓存key前缀，如 RedisConstants.CACHE_SHOP_KEY
+     */
+    String prefix();
+
+    /**
+     * 缓存key的SpEL表达式，如 #id，值为空时不走缓存
+     */
+    String key();
+
+    CacheStrategy strategy() default CacheStrategy.PASS_THROUGH;
+
+    /**
+     * 缓存有效期，逻辑过期策略为逻辑过期时间
+     */
+    long ttl() default 30;
+
+    TimeUnit unit() default TimeUnit.MINUTES;
+}
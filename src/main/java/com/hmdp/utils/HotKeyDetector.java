@@ -0,0 +1,157 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 2023/2/13 11:20
+ * 热点key探测：按比例采样访问的key，每个窗口结束时衰减历史分数并累加本窗口的次数，分数最高的前K个为热点key
+ * 当前热点key可以通过 GET /actuator/hotkeys 查看
+ * 窗口切换使用自己的调度线程，不受其它耗时的定时任务影响
+ *
+ * @author tfqy
+ */
+
+@Slf4j
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeyDetector {
+
+    // 本窗口采样到的访问次数
+    private volatile Map<String, LongAdder> windowCounts = new ConcurrentHashMap<>();
+
+    // 衰减后的分数，只在窗口切换时由调度线程修改
+    private Map<String, Double> scores = new HashMap<>();
+
+    // 当前的热点key及分数
+    private volatile Map<String, Double> hotKeys = Collections.emptyMap();
+
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private boolean enabled;
+
+    // 统计窗口
+    @Value("${hmdp.cache.hot-key.window-ms:1000}")
+    private long windowMillis;
+
+    private ScheduledExecutorService scheduler;
+
+    // 采样比例，1表示每次访问都记录
+    @Value("${hmdp.cache.hot-key.sample-rate:0.1}")
+    private double sampleRate;
+
+    // 每个窗口后历史分数保留的比例
+    @Value("${hmdp.cache.hot-key.decay:0.5}")
+    private double decay;
+
+    @Value("${hmdp.cache.hot-key.top-k:20}")
+    private int topK;
+
+    // 分数达到这个值才算热点key，按采样后的次数计算
+    @Value("${hmdp.cache.hot-key.min-score:50}")
+    private double minScore;
+
+    // 最多跟踪的key数量，超过后不再记录新的key
+    @Value("${hmdp.cache.hot-key.max-tracked:10000}")
+    private int maxTracked;
+
+    /**
+     * 记录一次访问
+     */
+    public void record(String key) {
+        if (!enabled || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        Map<String, LongAdder> counts = windowCounts;
+        LongAdder counter = counts.get(key);
+        if (counter == null) {
+            if (counts.size() >= maxTracked) {
+                return;
+            }
+            counter = counts.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    @ReadOperation
+    public Map<String, Double> hotKeys() {
+        return hotKeys;
+    }
+
+    @PostConstruct
+    private void start() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("hot-key-", true));
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                rotate();
+            } catch (Exception e) {
+                // 异常会终止周期任务，这里只记录日志
+                log.error("切换热点key统计窗口异常", e);
+            }
+        }, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 切换窗口，重新计算热点key
+     */
+    void rotate() {
+        Map<String, LongAdder> counts = windowCounts;
+        windowCounts = new ConcurrentHashMap<>();
+        // 1.衰减历史分数，去掉已经冷下来的key
+        Map<String, Double> next = new HashMap<>(scores.size() + counts.size());
+        scores.forEach((key, score) -> {
+            double decayed = score * decay;
+            if (decayed >= 1) {
+                next.put(key, decayed);
+            }
+        });
+        // 2.累加本窗口的访问次数
+        counts.forEach((key, count) -> next.merge(key, (double) count.sum(), Double::sum));
+        // 3.跟踪的key太多时只保留分数高的
+        if (next.size() > maxTracked) {
+            scores = next.entrySet().stream()
+                    .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+                    .limit(maxTracked)
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        } else {
+            scores = next;
+        }
+        // 4.分数最高的前K个
+        hotKeys = Collections.unmodifiableMap(scores.entrySet().stream()
+                .filter(e -> e.getValue() >= minScore)
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+                .limit(topK)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> a, LinkedHashMap::new)));
+    }
+}
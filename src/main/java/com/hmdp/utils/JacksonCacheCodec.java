@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * 2023/2/10 10:15
+ * 基于jackson的缓存编码，json和smile共用同样的映射规则
+ *
+ * @author tfqy
+ */
+
+public abstract class JacksonCacheCodec implements CacheCodec {
+
+    private final ObjectMapper mapper;
+
+    protected JacksonCacheCodec(ObjectMapper mapper) {
+        this.mapper = mapper
+                .registerModule(new JavaTimeModule())
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        return mapper.writeValueAsBytes(value);
+    }
+
+    @Override
+    public Object decode(byte[] bytes, Type type) throws IOException {
+        return mapper.readValue(bytes, mapper.constructType(type));
+    }
+}
@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Component;
+
+/**
+ * 2023/2/10 10:20
+ * json编码，便于在redis中直接查看
+ *
+ * @author tfqy
+ */
+
+@Component
+public class JsonCacheCodec extends JacksonCacheCodec {
+
+    public JsonCacheCodec() {
+        super(new ObjectMapper());
+    }
+
+    @Override
+    public byte getId() {
+        return 1;
+    }
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+}
@@ -0,0 +1,255 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * 2023/2/9 15:40
+ * 布隆过滤器，位图保存在redis中，查询只读本地副本
+ * redis中的位图与本地副本的位一一对应（redis按字节高位在前），其它节点新增的id通过发布订阅同步到本地
+ *
+ * @author tfqy
+ */
+
+@Slf4j
+public class RedisBloomFilter {
+
+    private static final String RELOAD = "reload:";
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    private final String name;
+    private final byte[] key;
+    private final byte[] tmpKey;
+    private final long numBits;
+    private final int numHashFunctions;
+    private final StringRedisTemplate redisTemplate;
+
+    // 本地副本，为空时表示还未加载，所有id都视为可能存在
+    private volatile AtomicLongArray bits;
+
+    // 重建期间新增的id，重建完成后补写到新的位图中
+    private volatile Set<Long> pendingAdds;
+
+    /**
+     * @param expectedInsertions 预计的元素数量
+     * @param fpp                期望的误判率
+     */
+    public RedisBloomFilter(String name, long expectedInsertions, double fpp, StringRedisTemplate redisTemplate) {
+        this.name = name;
+        this.key = (RedisConstants.BLOOM_FILTER_KEY + name).getBytes(StandardCharsets.UTF_8);
+        this.tmpKey = (RedisConstants.BLOOM_FILTER_KEY + name + ":tmp").getBytes(StandardCharsets.UTF_8);
+        long bitCount = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        // 按64位对齐，本地副本和redis位图长度一致
+        this.numBits = Math.max(64, (bitCount + 63) / 64 * 64);
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.redisTemplate = redisTemplate;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isReady() {
+        return bits != null;
+    }
+
+    public boolean mightContain(long id) {
+        AtomicLongArray words = bits;
+        if (words == null) {
+            return true;
+        }
+        long hash1 = mix(id);
+        long hash2 = mix(hash1) | 1;
+        for (int i = 0; i < numHashFunctions; i++) {
+            long index = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+            if ((words.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增id，写入本地副本和redis，并通知其它节点
+     */
+    public void put(long id) {
+        putLocal(id);
+        long[] indexes = indexes(id);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long index : indexes) {
+                connection.setBit(key, index, true);
+            }
+            return null;
+        });
+        redisTemplate.convertAndSend(RedisConstants.BLOOM_FILTER_CHANNEL, name + ":" + id);
+    }
+
+    /**
+     * 只写入本地副本，收到其它节点的新增通知时调用
+     */
+    public void putLocal(long id) {
+        Set<Long> pending = pendingAdds;
+        if (pending != null) {
+            pending.add(id);
+        }
+        AtomicLongArray words = bits;
+        if (words == null) {
+            return;
+        }
+        for (long index : indexes(id)) {
+            setBit(words, index);
+        }
+    }
+
+    /**
+     * 从redis加载位图到本地副本
+     *
+     * @return redis中不存在位图时返回false
+     */
+    public synchronized boolean load() {
+        Set<Long> pending = ConcurrentHashMap.newKeySet();
+        pendingAdds = pending;
+        try {
+            byte[] bytes = redisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key));
+            if (bytes == null) {
+                return false;
+            }
+            AtomicLongArray words = new AtomicLongArray((int) (numBits / 64));
+            for (int i = 0; i < bytes.length && i < numBits / 8; i++) {
+                for (int j = 0; j < 8; j++) {
+                    if ((bytes[i] & (0x80 >>> j)) != 0) {
+                        setBit(words, i * 8L + j);
+                    }
+                }
+            }
+            swap(words, pending);
+            return true;
+        } finally {
+            pendingAdds = null;
+        }
+    }
+
+    /**
+     * 根据全部有效id重建位图，同一时间只有一个节点重建，其它节点只从redis加载
+     *
+     * @return 当前节点执行了重建时返回true
+     */
+    public synchronized boolean rebuild(Supplier<Collection<Long>> allIds) {
+        String lockKey = RedisConstants.LOCK_BLOOM_KEY + name;
+        Boolean isLock = redisTemplate.opsForValue().setIfAbsent(lockKey, "1", 10, TimeUnit.MINUTES);
+        if (!Boolean.TRUE.equals(isLock)) {
+            if (!load()) {
+                log.debug("布隆过滤器{}正在由其它节点重建", name);
+            }
+            return false;
+        }
+        Set<Long> pending = ConcurrentHashMap.newKeySet();
+        pendingAdds = pending;
+        try {
+            // 1.根据数据库中的id构建新的位图
+            AtomicLongArray words = new AtomicLongArray((int) (numBits / 64));
+            Collection<Long> ids = allIds.get();
+            for (Long id : ids) {
+                for (long index : indexes(id)) {
+                    setBit(words, index);
+                }
+            }
+            // 2.写入临时key后替换，重建期间读到的始终是完整的位图
+            byte[] bytes = new byte[(int) (numBits / 8)];
+            for (long index = 0; index < numBits; index++) {
+                if ((words.get((int) (index >>> 6)) & (1L << index)) != 0) {
+                    bytes[(int) (index >>> 3)] |= (byte) (0x80 >>> (index & 7));
+                }
+            }
+            redisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.set(tmpKey, bytes);
+                connection.rename(tmpKey, key);
+                return null;
+            });
+            // 3.补写重建期间新增的id
+            swap(words, pending);
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long id : pending) {
+                    for (long index : indexes(id)) {
+                        connection.setBit(key, index, true);
+                    }
+                }
+                return null;
+            });
+            // 4.通知其它节点重新加载
+            redisTemplate.convertAndSend(RedisConstants.BLOOM_FILTER_CHANNEL, name + ":" + RELOAD + NODE_ID);
+            log.debug("布隆过滤器{}重建完成，共{}个id", name, ids.size());
+            return true;
+        } finally {
+            pendingAdds = null;
+            redisTemplate.delete(lockKey);
+        }
+    }
+
+    /**
+     * 处理其它节点的通知，消息内容为新增的id或者重新加载的标记
+     */
+    public void onMessage(String message) {
+        if (message.startsWith(RELOAD)) {
+            if (!message.equals(RELOAD + NODE_ID)) {
+                load();
+            }
+            return;
+        }
+        try {
+            putLocal(Long.parseLong(message));
+        } catch (NumberFormatException e) {
+            log.error("布隆过滤器{}通知格式错误：{}", name, message);
+        }
+    }
+
+    // 先替换本地副本再补写等待中的id，替换前后新增的id都不会丢失
+    private void swap(AtomicLongArray words, Set<Long> pending) {
+        bits = words;
+        pendingAdds = null;
+        for (Long id : pending) {
+            for (long index : indexes(id)) {
+                setBit(words, index);
+            }
+        }
+    }
+
+    private long[] indexes(long id) {
+        long[] indexes = new long[numHashFunctions];
+        long hash1 = mix(id);
+        long hash2 = mix(hash1) | 1;
+        for (int i = 0; i < numHashFunctions; i++) {
+            indexes[i] = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+        }
+        return indexes;
+    }
+
+    private static void setBit(AtomicLongArray words, long index) {
+        int i = (int) (index >>> 6);
+        long mask = 1L << index;
+        long word;
+        while (((word = words.get(i)) & mask) == 0 && !words.compareAndSet(i, word, word | mask)) {
+            // 其它线程同时修改了这个字，重试
+        }
+    }
+
+    // murmur3的64位混淆函数
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -8,15 +8,35 @@ public class RedisConstants {
     public static final Long CACHE_NULL_TTL = 2L;
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
-    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_FILTER_CHANNEL = "bloom:filter";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
+    public static final String LOCK_CACHE_KEY = "lock:";
+    public static final String LOCK_BLOOM_KEY = "lock:bloom:";
     public static final String LOCK_ORDER_KEY = "lock:order:";
     public static final Long LOCK_SHOP_TTL = 10L;
     public static final String ICR_ID_KEY = "icr:";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last:";
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_MISSING_KEY = "seckill:missing:";
+    public static final Long SECKILL_MISSING_TTL = 1L;
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_ON_SALE_CHANNEL = "seckill:on-sale";
+    public static final String LIMIT_SECKILL_KEY = "limit:seckill:";
     public static final String QUEUE_NAME = "stream.orders";
+    public static final String QUEUE_GROUP = "g1";
+    public static final String DEAD_LETTER_QUEUE_NAME = "stream.orders.dlq";
+    public static final String ORDER_STATUS_KEY = "order:status:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_SNAPSHOT_KEY = "shop:geo:snapshot:";
+    public static final String SHOP_GEO_CHANNEL = "shop:geo:changed";
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -1,18 +1,32 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 2023/1/25 14:05
+ * 号段模式：每次用INCRBY从redis申请一段序列号，在本地用原子计数器分配，
+ * 当前号段用掉80%时异步预取下一个号段；hmdp.id.mode=snowflake时改用本地的雪花算法
  *
  * @author tfqy
  */
 
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -22,21 +36,193 @@ public class RedisIdWorker {
     // 机器id所占的位数
     private final int WORKER_ID_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private static final long SECONDS_PER_DAY = 86400L;
+
     private final StringRedisTemplate redisTemplate;
 
-    public RedisIdWorker(StringRedisTemplate redisTemplate) {
+    // 雪花算法模式下不为空
+    private final SnowflakeIdWorker snowflakeIdWorker;
+
+    // 每个业务前缀一个号段缓冲
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    // 异步预取号段的线程
+    private final ExecutorService segmentLoader =
+            Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("id-segment-", true));
+
+    // 每个号段包含的序列号数量
+    @Value("${hmdp.id.segment-step:1000}")
+    private long segmentStep;
+
+    public RedisIdWorker(StringRedisTemplate redisTemplate, ObjectProvider<SnowflakeIdWorker> snowflakeIdWorker) {
         this.redisTemplate = redisTemplate;
+        this.snowflakeIdWorker = snowflakeIdWorker.getIfAvailable();
     }
 
     public long nextId(String keyPrefix) {
+        if (snowflakeIdWorker != null) {
+            return snowflakeIdWorker.nextId();
+        }
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            long nowSecond = System.currentTimeMillis() / 1000;
+            Segment segment = buffer.current(nowSecond);
+            // 生成序列号
+            long count = segment.cursor.incrementAndGet();
+            if (count <= segment.max) {
+                buffer.prefetchIfNeeded(segment, count);
+                return segment.timestamp(nowSecond) << WORKER_ID_BITS | count;
+            }
+            // 号段用完，切换到下一个号段
+            buffer.switchSegment(segment);
+        }
+    }
+
+    /**
+     * 批量生成id
+     *
+     * @param keyPrefix 业务前缀
+     * @param n         数量
+     * @return 递增的id
+     */
+    public long[] nextIds(String keyPrefix, int n) {
+        long[] ids = new long[n];
+        if (snowflakeIdWorker != null) {
+            for (int i = 0; i < n; i++) {
+                ids[i] = snowflakeIdWorker.nextId();
+            }
+            return ids;
+        }
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        int filled = 0;
+        while (filled < n) {
+            long nowSecond = System.currentTimeMillis() / 1000;
+            Segment segment = buffer.current(nowSecond);
+            // 一次从号段中取出多个序列号
+            long start = segment.cursor.getAndAdd(n - filled);
+            long got = Math.min(n - filled, segment.max - start);
+            if (got > 0) {
+                buffer.prefetchIfNeeded(segment, start + got);
+                long timestamp = segment.timestamp(nowSecond) << WORKER_ID_BITS;
+                for (int i = 0; i < got; i++) {
+                    ids[filled++] = timestamp | (start + 1 + i);
+                }
+            }
+            if (filled < n) {
+                buffer.switchSegment(segment);
+            }
+        }
+        return ids;
+    }
+
+    // 从redis申请一个号段，序列号按天重新计数
+    private Segment loadSegment(String keyPrefix) {
         LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
-
-        // 生成序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-//        自增长
-        long count = redisTemplate.opsForValue().increment(RedisConstants.ICR_ID_KEY + keyPrefix + ":" + date);
-        return timestamp << WORKER_ID_BITS | count;
+        String date = now.format(DATE_FORMATTER);
+        Long max = redisTemplate.opsForValue().increment(RedisConstants.ICR_ID_KEY + keyPrefix + ":" + date, segmentStep);
+        if (max == null) {
+            throw new IllegalStateException("申请id号段失败：" + keyPrefix);
+        }
+        long offset = ZoneId.systemDefault().getRules().getOffset(now).getTotalSeconds();
+        long dayStart = now.toLocalDate().atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+        return new Segment(date, offset, dayStart + SECONDS_PER_DAY, max - segmentStep, max);
+    }
+
+    /**
+     * 一个号段，可分配的序列号为 (cursor, max]
+     */
+    private class Segment {
+        private final String date;
+        // 本地时区相对UTC的偏移，时间戳按本地时间计算，与按天计数的key保持一致
+        private final long offsetSeconds;
+        // 号段所属日期结束的时间（本地时间秒数）
+        private final long dayEnd;
+        private final AtomicLong cursor;
+        private final long max;
+        // 用到这个序列号时开始预取下一个号段
+        private final long prefetchAt;
+
+        private Segment(String date, long offsetSeconds, long dayEnd, long start, long max) {
+            this.date = date;
+            this.offsetSeconds = offsetSeconds;
+            this.dayEnd = dayEnd;
+            this.cursor = new AtomicLong(start);
+            this.max = max;
+            this.prefetchAt = start + (max - start) * 4 / 5;
+        }
+
+        private boolean expired(long nowSecond) {
+            return nowSecond + offsetSeconds >= dayEnd;
+        }
+
+        private long timestamp(long nowSecond) {
+            return nowSecond + offsetSeconds - BEGIN_TIMESTAMP;
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段缓冲：当前号段 + 预取的下一个号段
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        // 获取当前号段，跨天时重新申请
+        private Segment current(long nowSecond) {
+            Segment segment = current;
+            if (segment != null && !segment.expired(nowSecond)) {
+                return segment;
+            }
+            synchronized (this) {
+                segment = current;
+                if (segment == null || segment.expired(nowSecond)) {
+                    segment = loadSegment(keyPrefix);
+                    current = segment;
+                    next = null;
+                }
+                return segment;
+            }
+        }
+
+        // 号段用完时切换到预取的号段，没有预取到则同步申请
+        private void switchSegment(Segment exhausted) {
+            synchronized (this) {
+                if (current != exhausted) {
+                    return;
+                }
+                Segment prefetched = next;
+                next = null;
+                current = prefetched != null && prefetched.date.equals(exhausted.date)
+                        ? prefetched : loadSegment(keyPrefix);
+            }
+        }
+
+        private void prefetchIfNeeded(Segment segment, long count) {
+            if (count < segment.prefetchAt || next != null || !loading.compareAndSet(false, true)) {
+                return;
+            }
+            segmentLoader.execute(() -> {
+                try {
+                    Segment loaded = loadSegment(keyPrefix);
+                    synchronized (this) {
+                        if (next == null && current == segment) {
+                            next = loaded;
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error("预取id号段异常：{}", keyPrefix, e);
+                } finally {
+                    loading.set(false);
+                }
+            });
+        }
     }
 }
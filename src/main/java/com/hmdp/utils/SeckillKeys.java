@@ -0,0 +1,57 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 2023/2/22 10:10
+ * 分片库存秒杀的redis key：同一个分片序号的库存、下单用户和订单stream使用相同的hash tag，
+ * 在redis集群中落在同一个slot，分片脚本只访问本分片的key
+ *
+ * @author tfqy
+ */
+
+public final class SeckillKeys {
+
+    private SeckillKeys() {
+    }
+
+    // {shard-0}
+    public static String shardTag(int shard) {
+        return "{shard-" + shard + "}";
+    }
+
+    // seckill:stock:{shard-0}:voucherId
+    public static String shardStockKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_STOCK_KEY + shardTag(shard) + ":" + voucherId;
+    }
+
+    // seckill:order:{shard-0}:voucherId
+    public static String shardOrderKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_ORDER_KEY + shardTag(shard) + ":" + voucherId;
+    }
+
+    // stream.orders:{shard-0}
+    public static String shardQueueName(int shard) {
+        return RedisConstants.QUEUE_NAME + ":" + shardTag(shard);
+    }
+
+    /**
+     * 订单stream对应的死信队列：stream.orders -> stream.orders.dlq，stream.orders:{shard-0} -> stream.orders.dlq:{shard-0}
+     */
+    public static String deadLetterQueueName(String queueName) {
+        return RedisConstants.DEAD_LETTER_QUEUE_NAME + queueName.substring(RedisConstants.QUEUE_NAME.length());
+    }
+
+    /**
+     * 所有订单stream：不分片的stream.orders和每个分片的stream
+     */
+    public static List<String> queueNames(int maxShards) {
+        List<String> names = new ArrayList<>(maxShards + 1);
+        names.add(RedisConstants.QUEUE_NAME);
+        for (int i = 0; i < maxShards; i++) {
+            names.add(shardQueueName(i));
+        }
+        return names;
+    }
+}
@@ -0,0 +1,119 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 2023/2/8 15:20
+ * 秒杀限流：本地令牌桶快速拒绝，redis令牌桶控制全局流量和单个用户的请求频率
+ *
+ * @author tfqy
+ */
+
+@Component
+public class SeckillRateLimiter {
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+    private final StringRedisTemplate redisTemplate;
+    // 每个优惠券一个本地令牌桶，优惠券id来自请求路径，限制数量并在不再访问后过期
+    private final Cache<Long, LocalTokenBucket> localBuckets = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+
+    @Value("${hmdp.seckill.limit.enabled:true}")
+    private boolean enabled;
+    // 单个节点每个优惠券每秒放行的请求数
+    @Value("${hmdp.seckill.limit.local-permits-per-second:2000}")
+    private long localPermitsPerSecond;
+    // 所有节点每个优惠券每秒放行的请求数
+    @Value("${hmdp.seckill.limit.global-permits-per-second:5000}")
+    private long globalPermitsPerSecond;
+    // 全局令牌桶容量，允许的突发请求数
+    @Value("${hmdp.seckill.limit.burst:5000}")
+    private long burst;
+    // 同一用户两次请求的最小间隔
+    @Value("${hmdp.seckill.limit.user-interval-ms:1000}")
+    private long userIntervalMillis;
+
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    public SeckillRateLimiter(StringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    /**
+     * 尝试获取秒杀许可
+     *
+     * @return true：放行，false：请求过多，直接拒绝
+     */
+    public boolean tryAcquire(Long voucherId, Long userId) {
+        if (!enabled) {
+            return true;
+        }
+        // 1.本地令牌桶，超出单节点流量时不访问redis
+        LocalTokenBucket bucket = localBuckets.get(voucherId,
+                id -> new LocalTokenBucket(localPermitsPerSecond, localPermitsPerSecond));
+        if (!bucket.tryAcquire()) {
+            return false;
+        }
+        // 2.redis全局令牌桶和用户频率，两个key使用优惠券id作为hash tag，在redis集群中落在同一个slot
+        String bucketKey = RedisConstants.LIMIT_SECKILL_KEY + "{" + voucherId + "}";
+        Long result = redisTemplate.execute(LIMIT_SCRIPT,
+                Arrays.asList(bucketKey, bucketKey + ":" + userId),
+                String.valueOf(globalPermitsPerSecond), String.valueOf(burst),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(userIntervalMillis));
+        if (result != null && result == 1) {
+            return true;
+        }
+        // 3.被redis拒绝的请求没有放行，归还本地令牌
+        bucket.release();
+        return false;
+    }
+
+    /**
+     * 本地令牌桶
+     */
+    private static class LocalTokenBucket {
+        private final double permitsPerMillis;
+        private final double capacity;
+        private double tokens;
+        private long lastRefillTime;
+
+        private LocalTokenBucket(long permitsPerSecond, long capacity) {
+            this.permitsPerMillis = permitsPerSecond / 1000.0;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefillTime = System.currentTimeMillis();
+        }
+
+        private synchronized boolean tryAcquire() {
+            long now = System.currentTimeMillis();
+            if (now > lastRefillTime) {
+                tokens = Math.min(capacity, tokens + (now - lastRefillTime) * permitsPerMillis);
+                lastRefillTime = now;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        private synchronized void release() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 2023/2/6 10:12
+ * 秒杀券本地售罄标记，售罄后的请求不再访问redis
+ * 标记几秒后过期，库存恢复（重新预热、新建秒杀券）时通知所有节点清除标记
+ *
+ * @author tfqy
+ */
+
+@Slf4j
+@Component
+public class SeckillSoldOutCache implements MessageListener {
+
+    private final Cache<Long, Boolean> soldOutVouchers;
+    private final StringRedisTemplate redisTemplate;
+
+    public SeckillSoldOutCache(StringRedisTemplate redisTemplate,
+                               @Value("${hmdp.seckill.sold-out-ttl-ms:5000}") long soldOutTtlMillis) {
+        this.redisTemplate = redisTemplate;
+        this.soldOutVouchers = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(soldOutTtlMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOutVouchers.getIfPresent(voucherId) != null;
+    }
+
+    /**
+     * 标记售罄，并通知其它节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOutVouchers.asMap().putIfAbsent(voucherId, Boolean.TRUE) == null) {
+            redisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    /**
+     * 库存恢复后清除售罄标记，并通知其它节点
+     */
+    public void unmarkSoldOut(Long voucherId) {
+        soldOutVouchers.invalidate(voucherId);
+        redisTemplate.convertAndSend(RedisConstants.SECKILL_ON_SALE_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 接收其它节点的售罄和恢复通知
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String voucherId = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (RedisConstants.SECKILL_ON_SALE_CHANNEL.equals(channel)) {
+                soldOutVouchers.invalidate(Long.valueOf(voucherId));
+            } else {
+                soldOutVouchers.put(Long.valueOf(voucherId), Boolean.TRUE);
+            }
+        } catch (NumberFormatException e) {
+            log.error("售罄通知格式错误：{}", voucherId);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 2023/2/19 10:30
+ * 商铺坐标的本地网格索引，按类型把坐标划分到固定大小的经纬度网格中，附近商铺查询不再访问redis GEO
+ * 启动时以及定时从数据库重建，商铺新增或修改后通过发布订阅通知所有节点从数据库重新加载这个商铺
+ *
+ * @author tfqy
+ */
+
+@Slf4j
+@Component
+public class ShopGeoIndex implements MessageListener {
+
+    private final ShopMapper shopMapper;
+    private final StringRedisTemplate redisTemplate;
+
+    // 类型id -> 网格索引，重建时整体替换，为空时表示还未加载
+    private volatile Map<Long, TypeIndex> indexes;
+
+    // 重建期间修改的商铺id，重建完成后重新加载
+    private volatile Set<Long> pendingChanges;
+
+    // 同时只有一个重建任务，重建期间不阻塞单个商铺的重新加载
+    private final Object rebuildLock = new Object();
+
+    @Value("${hmdp.geo.index.enabled:true}")
+    private boolean enabled;
+
+    // 网格大小，单位度
+    @Value("${hmdp.geo.index.cell-degrees:0.01}")
+    private double cellDegrees;
+
+    // 重建时每次从数据库读取的条数
+    @Value("${hmdp.geo.index.page-size:1000}")
+    private int pageSize;
+
+    public ShopGeoIndex(ShopMapper shopMapper, StringRedisTemplate redisTemplate) {
+        this.shopMapper = shopMapper;
+        this.redisTemplate = redisTemplate;
+    }
+
+    /**
+     * 是否已经加载，未加载时调用方应查询redis GEO
+     */
+    public boolean isReady() {
+        return enabled && indexes != null;
+    }
+
+    /**
+     * 查询半径内离坐标最近的limit个商铺，按距离从近到远排序
+     *
+     * @param radius 半径，单位米
+     */
+    public List<Hit> search(Long typeId, double x, double y, double radius, int limit) {
+        Map<Long, TypeIndex> current = indexes;
+        TypeIndex index = current == null ? null : current.get(typeId);
+        if (index == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        // 1.最大堆保存目前最近的limit个
+        PriorityQueue<Hit> nearest = new PriorityQueue<>(limit + 1, Comparator.comparingDouble(Hit::getDistance).reversed());
+        long cx = cell(x);
+        long cy = cell(y);
+        // 半径内的商铺纬度不会超出这个范围，只查找范围内的网格行
+        double radiusDegrees = Math.toDegrees(radius / GeoUtils.EARTH_RADIUS);
+        long minGy = cell(y - radiusDegrees);
+        long maxGy = cell(y + radiusDegrees);
+        // 范围内离赤道最远的网格边缘，这里经度方向的距离最短，用它估算每一圈网格的最近距离
+        double maxLatitude = Math.min(90, Math.max(Math.abs(minGy * cellDegrees), Math.abs((maxGy + 1) * cellDegrees)));
+        double minCos = Math.cos(Math.toRadians(maxLatitude));
+        // 最多查找到经度相差180度
+        int maxRing = (int) Math.ceil(180 / cellDegrees) + 1;
+        // 2.从坐标所在的网格开始一圈一圈向外查找
+        for (int ring = 0; ring <= maxRing; ring++) {
+            double ringMinDistance = ringMinDistance(ring, minCos);
+            if (ringMinDistance > radius
+                    || (nearest.size() >= limit && ringMinDistance > nearest.peek().getDistance())) {
+                // 更外圈的商铺不可能更近了
+                break;
+            }
+            for (long gy = Math.max(cy - ring, minGy); gy <= Math.min(cy + ring, maxGy); gy++) {
+                // 只处理这一圈上的网格，中间的行只有左右两端的网格
+                long step = ring == 0 || Math.abs(gy - cy) == ring ? 1 : 2L * ring;
+                for (long gx = cx - ring; gx <= cx + ring; gx += step) {
+                    Entry[] entries = index.cells.get(cellKey(gx, gy));
+                    if (entries == null) {
+                        continue;
+                    }
+                    for (Entry entry : entries) {
+                        double distance = GeoUtils.distance(x, y, entry.x, entry.y);
+                        if (distance > radius) {
+                            continue;
+                        }
+                        if (nearest.size() < limit) {
+                            nearest.add(new Hit(entry.id, distance));
+                        } else if (distance < nearest.peek().getDistance()) {
+                            nearest.poll();
+                            nearest.add(new Hit(entry.id, distance));
+                        }
+                    }
+                }
+            }
+        }
+        // 3.按距离从近到远返回
+        List<Hit> result = new ArrayList<>(nearest);
+        result.sort(Comparator.comparingDouble(Hit::getDistance));
+        return result;
+    }
+
+    /**
+     * 商铺新增或修改后调用，在事务中时等事务提交后再通知
+     */
+    public void publishChanged(Long shopId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    redisTemplate.convertAndSend(RedisConstants.SHOP_GEO_CHANNEL, shopId.toString());
+                }
+            });
+        } else {
+            redisTemplate.convertAndSend(RedisConstants.SHOP_GEO_CHANNEL, shopId.toString());
+        }
+    }
+
+    /**
+     * 接收商铺修改通知，从数据库重新加载这个商铺的坐标
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        if (!enabled) {
+            return;
+        }
+        Long shopId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        Set<Long> pending = pendingChanges;
+        if (pending != null) {
+            pending.add(shopId);
+        }
+        reload(shopId);
+    }
+
+    /**
+     * 启动时以及定时根据数据库重建索引
+     */
+    @Scheduled(fixedDelayString = "${hmdp.geo.index.rebuild-interval-ms:3600000}")
+    public void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        synchronized (rebuildLock) {
+            doRebuild();
+        }
+    }
+
+    private void doRebuild() {
+        try {
+            long begin = System.currentTimeMillis();
+            pendingChanges = ConcurrentHashMap.newKeySet();
+            // 1.按id分页读取所有商铺的坐标
+            Map<Long, TypeIndex> next = new HashMap<>();
+            long lastId = 0;
+            int count = 0;
+            while (true) {
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                        .select("id", "type_id", "x", "y")
+                        .gt("id", lastId).orderByAsc("id")
+                        .last("LIMIT " + pageSize));
+                if (shops.isEmpty()) {
+                    break;
+                }
+                for (Shop shop : shops) {
+                    if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                        next.computeIfAbsent(shop.getTypeId(), k -> new TypeIndex())
+                                .put(new Entry(shop.getId(), shop.getX(), shop.getY()));
+                    }
+                }
+                count += shops.size();
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            // 2.替换索引，重新加载重建期间修改过的商铺
+            Map<Long, TypeIndex> rebuilt = new ConcurrentHashMap<>(next);
+            synchronized (this) {
+                indexes = rebuilt;
+            }
+            Set<Long> pending = pendingChanges;
+            pendingChanges = null;
+            pending.forEach(this::reload);
+            log.info("商铺坐标索引重建完成，商铺数：{}，耗时：{}ms", count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            pendingChanges = null;
+            log.error("重建商铺坐标索引异常", e);
+        }
+    }
+
+    // 查询数据库也在锁内，多个监听线程并发重新加载同一个商铺时，后查询的结果一定后写入索引
+    private void reload(Long shopId) {
+        synchronized (this) {
+            Map<Long, TypeIndex> current = indexes;
+            if (current == null) {
+                return;
+            }
+            Shop shop = shopMapper.selectOne(new QueryWrapper<Shop>()
+                    .select("id", "type_id", "x", "y").eq("id", shopId));
+            // 先从所有类型中删除，商铺可能修改了类型或坐标
+            current.values().forEach(index -> index.remove(shopId));
+            if (shop != null && shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                current.computeIfAbsent(shop.getTypeId(), k -> new TypeIndex())
+                        .put(new Entry(shop.getId(), shop.getX(), shop.getY()));
+            }
+        }
+    }
+
+    /**
+     * 第ring圈网格内的坐标到查询坐标的最短距离的下界
+     * 两者所在网格之间在经度或纬度方向至少隔了ring-1个网格，和GeoUtils使用相同的地球半径计算：
+     * 纬度方向是经线上的距离，经度方向按半正矢公式 hav(d) >= cos(lat1) * cos(lat2) * hav(经度差) 估算
+     *
+     * @param minCos 查找范围内纬度余弦的最小值
+     */
+    private double ringMinDistance(int ring, double minCos) {
+        if (ring <= 1) {
+            return 0;
+        }
+        double gap = Math.toRadians(Math.min((ring - 1) * cellDegrees, 180));
+        double latitudeDistance = GeoUtils.EARTH_RADIUS * gap;
+        double longitudeDistance = 2 * GeoUtils.EARTH_RADIUS * Math.asin(minCos * Math.sin(gap / 2));
+        return Math.min(latitudeDistance, longitudeDistance);
+    }
+
+    private long cell(double degrees) {
+        return (long) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long cellKey(long gx, long gy) {
+        return (gx << 32) ^ (gy & 0xffffffffL);
+    }
+
+    /**
+     * 一个类型的网格索引，网格内的商铺数组修改时整体复制，查询不需要加锁
+     */
+    private class TypeIndex {
+        private final Map<Long, Entry[]> cells = new ConcurrentHashMap<>();
+        private final Map<Long, Entry> entries = new HashMap<>();
+
+        // 重建时只在替换前修改，之后的修改都持有ShopGeoIndex的锁
+        private void put(Entry entry) {
+            remove(entry.id);
+            entries.put(entry.id, entry);
+            cells.compute(cellKey(cell(entry.x), cell(entry.y)), (k, old) -> {
+                if (old == null) {
+                    return new Entry[]{entry};
+                }
+                Entry[] copy = Arrays.copyOf(old, old.length + 1);
+                copy[old.length] = entry;
+                return copy;
+            });
+        }
+
+        private void remove(Long id) {
+            Entry entry = entries.remove(id);
+            if (entry == null) {
+                return;
+            }
+            cells.computeIfPresent(cellKey(cell(entry.x), cell(entry.y)), (k, old) -> {
+                Entry[] copy = Arrays.stream(old).filter(e -> !e.id.equals(id)).toArray(Entry[]::new);
+                return copy.length == 0 ? null : copy;
+            });
+        }
+    }
+
+    private static class Entry {
+        private final Long id;
+        private final double x;
+        private final double y;
+
+        private Entry(Long id, double x, double y) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * 查询结果：商铺id和距离（米）
+     */
+    public static class Hit {
+        private final Long id;
+        private final double distance;
+
+        private Hit(Long id, double distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+    }
+}
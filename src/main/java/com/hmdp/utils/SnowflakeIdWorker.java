@@ -0,0 +1,166 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 2023/2/8 10:20
+ * 雪花算法：启动时从redis租用一个机器id并定时续期，之后完全在本地生成id
+ * id结构：1位符号 + 1位标记 + 40位毫秒时间戳 + 10位机器id + 12位序列号
+ *
+ * @author tfqy
+ */
+
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "snowflake")
+public class SnowflakeIdWorker {
+
+    //开始时间截 (2023-01-25)
+    private static final long BEGIN_TIMESTAMP = 1674626934000L;
+
+    private static final int WORKER_ID_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    // 标记位，保证和RedisIdWorker号段模式生成的id不会重复
+    private static final long MODE_FLAG = 1L << 62;
+
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true);
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("id_worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("id_worker_release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final ScheduledExecutorService leaseRenewer =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("id-worker-lease-", true));
+
+    // 高位是相对BEGIN_TIMESTAMP的毫秒数，低12位是序列号
+    private final AtomicLong state = new AtomicLong();
+
+    private volatile long workerId = -1;
+
+    // 超过这个时间租约可能已被其他节点占用，停止生成id
+    private volatile long leaseDeadline;
+
+    // 机器id租约有效期
+    @Value("${hmdp.id.worker-lease-seconds:30}")
+    private long leaseSeconds;
+
+    public SnowflakeIdWorker(StringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        acquireWorkerId();
+        long period = Math.max(1, leaseSeconds * 1000 / 3);
+        leaseRenewer.scheduleWithFixedDelay(this::renewLease, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        leaseRenewer.shutdownNow();
+        redisTemplate.execute(RELEASE_SCRIPT, Arrays.asList(leaseKey(workerId), lastKey(workerId)),
+                ID_PREFIX, String.valueOf(lastTimestamp()));
+    }
+
+    public long nextId() {
+        if (System.currentTimeMillis() > leaseDeadline) {
+            throw new IllegalStateException("机器id租约已失效：" + workerId);
+        }
+        while (true) {
+            long now = System.currentTimeMillis() - BEGIN_TIMESTAMP;
+            long prev = state.get();
+            // 时间前进则序列号从0开始；同一毫秒或时钟回拨时沿用上次的时间戳，序列号用完自动进位到下一毫秒
+            long next = now > prev >>> SEQUENCE_BITS ? now << SEQUENCE_BITS : prev + 1;
+            if (state.compareAndSet(prev, next)) {
+                return MODE_FLAG
+                        | (next >>> SEQUENCE_BITS) << (WORKER_ID_BITS + SEQUENCE_BITS)
+                        | workerId << SEQUENCE_BITS
+                        | next & SEQUENCE_MASK;
+            }
+        }
+    }
+
+    // 从随机位置开始找一个空闲的机器id
+    private void acquireWorkerId() {
+        long start = RandomUtil.randomLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            long begin = System.currentTimeMillis();
+            Boolean success = redisTemplate.opsForValue()
+                    .setIfAbsent(leaseKey(id), ID_PREFIX, leaseSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                // 从上一个使用该机器id的节点最后的时间戳之后开始，避免重启时时钟回拨导致重复
+                String last = redisTemplate.opsForValue().get(lastKey(id));
+                if (last != null) {
+                    long lastState = Long.parseLong(last) << SEQUENCE_BITS | SEQUENCE_MASK;
+                    state.accumulateAndGet(lastState, Math::max);
+                }
+                workerId = id;
+                leaseDeadline = begin + leaseSeconds * 1000;
+                log.info("租用机器id：{}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的机器id");
+    }
+
+    private void renewLease() {
+        long begin = System.currentTimeMillis();
+        try {
+            Long result = redisTemplate.execute(RENEW_SCRIPT, Arrays.asList(leaseKey(workerId), lastKey(workerId)),
+                    ID_PREFIX, String.valueOf(leaseSeconds), String.valueOf(lastTimestamp()));
+            if (result != null && result == 1) {
+                leaseDeadline = begin + leaseSeconds * 1000;
+                return;
+            }
+            // 租约已被其他节点占用，重新租用
+            log.warn("机器id租约已被占用：{}", workerId);
+            leaseDeadline = 0;
+            acquireWorkerId();
+        } catch (Exception e) {
+            log.error("机器id续期异常", e);
+        }
+    }
+
+    private long lastTimestamp() {
+        return state.get() >>> SEQUENCE_BITS;
+    }
+
+    private static String leaseKey(long id) {
+        return RedisConstants.ID_WORKER_KEY + id;
+    }
+
+    private static String lastKey(long id) {
+        return RedisConstants.ID_WORKER_LAST_KEY + id;
+    }
+}
@@ -0,0 +1,7 @@
+-- 从主key复制热点key的副本，KEYS[1] 主key，KEYS[2] 副本key，ARGV[1] 副本的有效期（秒）
+-- 读取和写入在同一个脚本中，主key被删除后不会再写入旧的副本
+local value = redis.call('GET', KEYS[1])
+if (value) then
+    redis.call('SET', KEYS[2], value, 'EX', ARGV[1])
+end
+return value
@@ -0,0 +1,7 @@
+-- KEYS[1] 机器id的租约key，KEYS[2] 该机器id最后使用的时间戳key
+-- ARGV[1] 当前节点标示，ARGV[2] 当前节点最后使用的时间戳
+if (redis.call('GET', KEYS[1]) == ARGV[1]) then
+    redis.call('SET', KEYS[2], ARGV[2])
+    return redis.call('DEL', KEYS[1])
+end
+return 0
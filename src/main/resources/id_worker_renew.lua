@@ -0,0 +1,16 @@
+-- KEYS[1] 机器id的租约key，KEYS[2] 该机器id最后使用的时间戳key
+-- ARGV[1] 当前节点标示，ARGV[2] 租约有效期（秒），ARGV[3] 当前节点最后使用的时间戳
+local owner = redis.call('GET', KEYS[1])
+if (owner == false) then
+    -- 租约已过期且未被其他节点占用，重新占用
+    redis.call('SET', KEYS[1], ARGV[1], 'EX', ARGV[2])
+elseif (owner == ARGV[1]) then
+    -- 续期
+    redis.call('EXPIRE', KEYS[1], ARGV[2])
+else
+    -- 已被其他节点占用
+    return 0
+end
+-- 记录最后使用的时间戳，下一个占用该机器id的节点不会生成比它更小的时间戳
+redis.call('SET', KEYS[2], ARGV[3])
+return 1
@@ -0,0 +1,28 @@
+-- 秒杀限流脚本：先校验用户请求频率，再从优惠券的全局令牌桶中取一个令牌
+-- KEYS[1] 令牌桶key limit:seckill:{voucherId}，hash结构：tokens 剩余令牌，ts 上次补充令牌的时间
+-- KEYS[2] 用户限流key limit:seckill:{voucherId}:userId，和KEYS[1]使用相同的hash tag
+-- ARGV[1] 每秒生成的令牌数，ARGV[2] 桶容量，ARGV[3] 当前时间（毫秒），ARGV[4] 同一用户两次请求的最小间隔（毫秒）
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+
+-- 1.补充令牌
+local bucket = redis.call('HMGET', KEYS[1], 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+if (now > ts) then
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+-- 2.没有令牌，返回0
+if (tokens < 1) then
+    return 0
+end
+-- 3.同一用户请求过于频繁，返回2 SET userKey 1 PX interval NX
+if (not redis.call('SET', KEYS[2], '1', 'PX', ARGV[4], 'NX')) then
+    return 2
+end
+-- 4.取走一个令牌
+redis.call('HMSET', KEYS[1], 'tokens', tokens - 1, 'ts', ts)
+redis.call('PEXPIRE', KEYS[1], math.ceil(capacity * 1000 / rate) + 1000)
+return 1
@@ -5,28 +5,55 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3.订单id
 local orderId = ARGV[3]
+-- 1.4.当前时间（毫秒）
+local now = tonumber(ARGV[4])
+-- 1.5.stream.orders的近似最大长度
+local maxLength = ARGV[5]
+-- 1.6.订单状态的有效期（秒）
+local statusTtl = ARGV[6]
 
 -- 2.数据key
--- 2.1.库存key
+-- 2.1.库存key，hash结构：stock 库存，begin 开始时间，end 结束时间
 local stockKey = 'seckill:stock:' .. voucherId
 -- 2.2.订单key
 local orderKey = 'seckill:order:' .. voucherId
 
 -- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey
-if (tonumber(redis.call('GET', stockKey)) <= 0) then
-    -- 3.2.库存不足，返回1
+-- 3.1.查询库存和秒杀时间 HMGET stockKey stock begin end
+local voucher = redis.call('HMGET', stockKey, 'stock', 'begin', 'end')
+local stock = tonumber(voucher[1])
+if (stock == nil) then
+    -- 库存未预热，返回6
+    return 6
+end
+-- 3.2.判断秒杀是否开始
+if (voucher[2] and now < tonumber(voucher[2])) then
+    -- 尚未开始，返回4
+    return 4
+end
+-- 3.3.判断秒杀是否已经结束
+if (voucher[3] and now > tonumber(voucher[3])) then
+    -- 已经结束，返回5
+    return 5
+end
+-- 3.4.判断库存是否充足
+if (stock <= 0) then
+    -- 库存不足，返回1
     return 1
 end
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
+-- 3.5.判断用户是否下单 SISMEMBER orderKey userId
 if (redis.call('SISMEMBER', orderKey, userId) == 1) then
-    -- 3.3.存在，说明是重复下单，返回2
+    -- 存在，说明是重复下单，返回2
     return 2
 end
--- 3.4.扣库存 incrby stockKey -1
-redis.call('INCRBY', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId
+-- 3.6.扣库存 hincrby stockKey stock -1
+redis.call('HINCRBY', stockKey, 'stock', -1)
+-- 3.7.下单（保存用户）sadd orderKey userId
 redis.call('SADD', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('XADD', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.8.发送消息到队列中， XADD stream.orders MAXLEN ~ n * k1 v1 k2 v2 ...
+redis.call('XADD', 'stream.orders', 'MAXLEN', '~', maxLength, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.9.保存订单状态，供用户查询下单结果
+local statusKey = 'order:status:' .. orderId
+redis.call('HMSET', statusKey, 'status', 'PENDING', 'userId', userId, 'voucherId', voucherId)
+redis.call('EXPIRE', statusKey, statusTtl)
 return 0
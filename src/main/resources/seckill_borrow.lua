@@ -0,0 +1,11 @@
+-- 向其它库存分片借一个库存并直接在这个分片下单，扣库存和发消息在同一个脚本中，不会丢失库存
+-- KEYS[1] 分片库存key，KEYS[2] 分片的订单stream，两个key带相同的hash tag
+-- ARGV[1] 优惠券id，ARGV[2] 用户id，ARGV[3] 订单id，ARGV[4] stream的近似最大长度
+-- 借到并下单返回1，分片库存不足返回0
+local stock = tonumber(redis.call('HGET', KEYS[1], 'stock'))
+if (stock == nil or stock <= 0) then
+    return 0
+end
+redis.call('HINCRBY', KEYS[1], 'stock', -1)
+redis.call('XADD', KEYS[2], 'MAXLEN', '~', ARGV[4], '*', 'userId', ARGV[2], 'voucherId', ARGV[1], 'id', ARGV[3])
+return 1
@@ -0,0 +1,12 @@
+-- 把消息转入死信队列并确认原消息
+-- KEYS[1] 原stream，KEYS[2] 死信stream
+-- ARGV[1] 消费者组，ARGV[2] 原消息id，ARGV[3] 死信队列的最大长度，ARGV[4]... 消息内容 k1 v1 k2 v2 ...
+local fields = {}
+for i = 4, #ARGV do
+    fields[#fields + 1] = ARGV[i]
+end
+-- XADD stream.orders.dlq MAXLEN ~ n * sourceId id k1 v1 ...
+redis.call('XADD', KEYS[2], 'MAXLEN', '~', ARGV[3], '*', 'sourceId', ARGV[2], unpack(fields))
+-- XACK stream.orders g1 id
+redis.call('XACK', KEYS[1], ARGV[1], ARGV[2])
+return 1
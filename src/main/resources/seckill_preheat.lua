@@ -0,0 +1,20 @@
+-- 预热秒杀库存，KEYS[1] 就是库存key
+-- ARGV[1] 库存，ARGV[2] 开始时间，ARGV[3] 结束时间（毫秒），ARGV[4] 库存不存在时是否写入，1表示写入
+-- 库存只在不存在时写入，因为redis中的库存比数据库更新；秒杀时间每次都刷新
+-- 返回1表示写入了库存，0表示库存已经存在，-1表示库存不存在且不允许写入
+local seeded = 0
+local keyType = redis.call('TYPE', KEYS[1]).ok
+if (keyType == 'string') then
+    -- 旧版本的字符串库存，转成hash
+    local stock = redis.call('GET', KEYS[1])
+    redis.call('DEL', KEYS[1])
+    redis.call('HSET', KEYS[1], 'stock', stock)
+elseif (keyType == 'none') then
+    if (ARGV[4] ~= '1') then
+        return -1
+    end
+    redis.call('HSET', KEYS[1], 'stock', ARGV[1])
+    seeded = 1
+end
+redis.call('HMSET', KEYS[1], 'begin', ARGV[2], 'end', ARGV[3])
+return seeded
@@ -0,0 +1,56 @@
+-- 分片库存秒杀脚本：用户固定路由到自己的主分片，一人一单的记录也只保存在主分片
+-- 所有key都带分片的hash tag，在redis集群中属于同一个slot
+-- 1.key列表
+-- 1.1.分片库存key，hash结构：stock 库存，begin 开始时间，end 结束时间
+local stockKey = KEYS[1]
+-- 1.2.分片订单key
+local orderKey = KEYS[2]
+-- 1.3.分片的订单stream
+local queueKey = KEYS[3]
+
+-- 2.参数列表
+-- 2.1.优惠券id
+local voucherId = ARGV[1]
+-- 2.2.用户id
+local userId = ARGV[2]
+-- 2.3.订单id
+local orderId = ARGV[3]
+-- 2.4.当前时间（毫秒）
+local now = tonumber(ARGV[4])
+-- 2.5.stream的近似最大长度
+local maxLength = ARGV[5]
+
+-- 3.脚本业务
+-- 3.1.查询库存和秒杀时间 HMGET stockKey stock begin end
+local voucher = redis.call('HMGET', stockKey, 'stock', 'begin', 'end')
+local stock = tonumber(voucher[1])
+if (stock == nil) then
+    -- 库存未预热，返回6
+    return 6
+end
+-- 3.2.判断秒杀是否开始
+if (voucher[2] and now < tonumber(voucher[2])) then
+    -- 尚未开始，返回4
+    return 4
+end
+-- 3.3.判断秒杀是否已经结束
+if (voucher[3] and now > tonumber(voucher[3])) then
+    -- 已经结束，返回5
+    return 5
+end
+-- 3.4.判断用户是否下单 SISMEMBER orderKey userId
+if (redis.call('SISMEMBER', orderKey, userId) == 1) then
+    -- 存在，说明是重复下单，返回2
+    return 2
+end
+-- 3.5.下单（保存用户）sadd orderKey userId
+redis.call('SADD', orderKey, userId)
+-- 3.6.主分片库存不足时只占住下单资格，返回3，由调用方向其它分片借库存，借不到时再删除
+if (stock <= 0) then
+    return 3
+end
+-- 3.7.扣库存 hincrby stockKey stock -1
+redis.call('HINCRBY', stockKey, 'stock', -1)
+-- 3.8.发送消息到分片的队列中， XADD queueKey MAXLEN ~ n * k1 v1 k2 v2 ...
+redis.call('XADD', queueKey, 'MAXLEN', '~', maxLength, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CacheValueCodecTest {
+
+    private static final int COMPRESS_THRESHOLD = 1024;
+
+    private static CacheValueCodec codec(String name) {
+        return new CacheValueCodec(Arrays.asList(new JsonCacheCodec(), new SmileCacheCodec()), name, COMPRESS_THRESHOLD);
+    }
+
+    private static Shop shop() {
+        return new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L).setScore(37)
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        for (String name : new String[]{"json", "smile"}) {
+            CacheValueCodec codec = codec(name);
+            byte[] bytes = codec.encode(shop());
+            assertEquals(CacheValueCodec.MAGIC, bytes[0]);
+            assertEquals(CacheValueCodec.VERSION, bytes[1]);
+            assertEquals(shop(), codec.decode(bytes, Shop.class));
+        }
+    }
+
+    @Test
+    public void testReadOtherCodec() {
+        // 切换编码后仍然能读取用原来的编码写入的缓存
+        byte[] bytes = codec("json").encode(shop());
+        assertEquals(shop(), codec("smile").decode(bytes, Shop.class));
+    }
+
+    @Test
+    public void testCompressThreshold() {
+        CacheValueCodec codec = codec("json");
+        byte[] small = codec.encode(shop());
+        assertEquals(0, small[3] & CacheValueCodec.FLAG_GZIP);
+
+        char[] images = new char[COMPRESS_THRESHOLD * 2];
+        Arrays.fill(images, 'a');
+        Shop large = shop().setImages(new String(images));
+        byte[] bytes = codec.encode(large);
+        assertEquals(CacheValueCodec.FLAG_GZIP, bytes[3] & CacheValueCodec.FLAG_GZIP);
+        assertEquals(large, codec.decode(bytes, Shop.class));
+    }
+
+    @Test
+    public void testLegacyJson() {
+        byte[] bytes = JSONUtil.toJsonStr(shop().setCreateTime(null)).getBytes(StandardCharsets.UTF_8);
+        assertEquals(shop().setCreateTime(null), codec("smile").decode(bytes, Shop.class));
+    }
+
+    @Test
+    public void testLegacyLogicalJson() {
+        RedisData<Shop> redisData = new RedisData<>();
+        LocalDateTime expireTime = LocalDateTime.of(2023, 2, 1, 10, 0);
+        redisData.setExpireTime(expireTime);
+        redisData.setData(shop().setCreateTime(null));
+        byte[] bytes = JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+
+        CacheValueCodec.LogicalEntry<Shop> entry = codec("smile").decodeLogical(bytes, Shop.class, 100);
+        assertEquals(shop().setCreateTime(null), entry.data);
+        assertEquals(toEpochMilli(expireTime), entry.expireAt);
+        assertEquals(100, entry.rebuildMillis);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLogicalRejectsPlainValue() {
+        // set()写入的第1版缓存没有逻辑过期时间，不能按逻辑过期读取
+        byte[] bytes = codec("smile").encode(shop());
+        codec("smile").decodeLogical(bytes, Shop.class, 100);
+    }
+
+    @Test
+    public void testLogicalVersion2() {
+        CacheValueCodec codec = codec("smile");
+        long expireAt = System.currentTimeMillis() + 30_000;
+        byte[] bytes = codec.encodeLogical(shop(), expireAt, 250);
+        assertEquals(CacheValueCodec.VERSION_LOGICAL, bytes[1]);
+
+        CacheValueCodec.LogicalEntry<Shop> entry = codec.decodeLogical(bytes, Shop.class, 100);
+        assertEquals(shop(), entry.data);
+        assertEquals(expireAt, entry.expireAt);
+        assertEquals(250, entry.rebuildMillis);
+    }
+
+    @Test
+    public void testLogicalVersion2Compressed() {
+        CacheValueCodec codec = codec("json");
+        char[] images = new char[COMPRESS_THRESHOLD * 2];
+        Arrays.fill(images, 'b');
+        Shop large = shop().setImages(new String(images));
+        byte[] bytes = codec.encodeLogical(large, 1L, 0);
+        assertEquals(CacheValueCodec.FLAG_GZIP, bytes[3] & CacheValueCodec.FLAG_GZIP);
+        assertEquals(large, codec.decodeLogical(bytes, Shop.class, 100).data);
+    }
+
+    @Test
+    public void testNullValue() {
+        CacheValueCodec codec = codec("smile");
+        assertNull(codec.decode(codec.encode(null), Shop.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnknownVersion() {
+        byte[] bytes = codec("json").encode(shop());
+        bytes[1] = 9;
+        codec("json").decode(bytes, Shop.class);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnknownCodec() {
+        byte[] bytes = codec("json").encode(shop());
+        bytes[2] = 9;
+        codec("json").decode(bytes, Shop.class);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDuplicateCodecId() {
+        new CacheValueCodec(Arrays.asList(new JsonCacheCodec(), new JsonCacheCodec()), "json", COMPRESS_THRESHOLD);
+    }
+
+    @Test
+    public void testHeaderLayout() {
+        byte[] bytes = codec("json").encode("x");
+        assertArrayEquals(new byte[]{CacheValueCodec.MAGIC, CacheValueCodec.VERSION, 1, 0},
+                Arrays.copyOf(bytes, CacheValueCodec.HEADER_LENGTH));
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
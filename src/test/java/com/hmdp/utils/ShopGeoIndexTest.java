@@ -0,0 +1,161 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ShopGeoIndexTest {
+
+    private final List<Shop> shops = new ArrayList<>();
+    private ShopMapper shopMapper;
+    private ShopGeoIndex index;
+
+    @Before
+    public void setUp() {
+        // 杭州附近随机分布的商铺，两种类型
+        addShops(120.1, 30.2, new Random(1));
+        shopMapper = mock(ShopMapper.class);
+        rebuild();
+    }
+
+    private void addShops(double minX, double minY, Random random) {
+        for (int i = 0; i < 5000; i++) {
+            long id = shops.size() + 1;
+            shops.add(new Shop().setId(id).setTypeId(1 + id % 2)
+                    .setX(minX + random.nextDouble() * 0.2).setY(minY + random.nextDouble() * 0.2));
+        }
+    }
+
+    private void rebuild() {
+        when(shopMapper.selectList(any())).thenReturn(shops, Collections.emptyList());
+        index = new ShopGeoIndex(shopMapper, null);
+        ReflectionTestUtils.setField(index, "enabled", true);
+        ReflectionTestUtils.setField(index, "cellDegrees", 0.01);
+        ReflectionTestUtils.setField(index, "pageSize", 10000);
+        index.rebuild();
+    }
+
+    @Test
+    public void testSearchMatchesBruteForce() {
+        Random random = new Random(2);
+        double[] radiuses = {300, 1000, 5000};
+        int[] limits = {1, 10, 100};
+        for (int i = 0; i < 50; i++) {
+            long typeId = 1 + i % 2;
+            double x = 120.05 + random.nextDouble() * 0.3;
+            double y = 30.15 + random.nextDouble() * 0.3;
+            double radius = radiuses[i % radiuses.length];
+            int limit = limits[(i / radiuses.length) % limits.length];
+            assertSameHits(bruteForce(typeId, x, y, radius, limit), index.search(typeId, x, y, radius, limit));
+        }
+    }
+
+    @Test
+    public void testSearchHighLatitudeMatchesBruteForce() {
+        // 高纬度经度方向的网格很窄，查询坐标在网格边界附近，半径边缘的商铺不能被跳过
+        double[] latitudes = {70.0001, 85.0099, 89.5001, 89.9901};
+        double[] radiuses = {300, 1000, 5000};
+        for (double y : latitudes) {
+            double x = 20.005;
+            shops.clear();
+            for (double radius : radiuses) {
+                // 每隔1度方位角在半径边缘放一个商铺，距离各不相同，排序结果唯一
+                for (int bearing = 0; bearing < 360; bearing++) {
+                    double[] point = destination(x, y, bearing, radius * (1 - (bearing + 1) * 1e-6));
+                    shops.add(new Shop().setId(shops.size() + 1L).setTypeId(1L).setX(point[0]).setY(point[1]));
+                }
+            }
+            rebuild();
+            for (double radius : radiuses) {
+                assertSameHits(bruteForce(1L, x, y, radius, 10000), index.search(1L, x, y, radius, 10000));
+                assertSameHits(bruteForce(1L, x, y, radius, 10), index.search(1L, x, y, radius, 10));
+            }
+        }
+    }
+
+    // 从坐标出发沿方位角走distance米后的坐标
+    private static double[] destination(double x, double y, double bearing, double distance) {
+        double d = distance / GeoUtils.EARTH_RADIUS;
+        double b = Math.toRadians(bearing);
+        double lat1 = Math.toRadians(y);
+        double lat2 = Math.asin(Math.sin(lat1) * Math.cos(d) + Math.cos(lat1) * Math.sin(d) * Math.cos(b));
+        double lon2 = Math.toRadians(x) + Math.atan2(Math.sin(b) * Math.sin(d) * Math.cos(lat1),
+                Math.cos(d) - Math.sin(lat1) * Math.sin(lat2));
+        return new double[]{Math.toDegrees(lon2), Math.toDegrees(lat2)};
+    }
+
+    @Test
+    public void testSearchUnknownType() {
+        assertTrue(index.search(3L, 120.2, 30.3, 5000, 10).isEmpty());
+    }
+
+    @Test
+    public void testReloadMovedShop() {
+        // 商铺修改了类型和坐标
+        Shop moved = new Shop().setId(1L).setTypeId(2L).setX(120.3).setY(30.45);
+        shops.set(0, moved);
+        when(shopMapper.selectOne(any())).thenReturn(moved);
+        index.onMessage(message(1L), null);
+
+        assertSameHits(bruteForce(1L, 120.2, 30.3, 5000, 50), index.search(1L, 120.2, 30.3, 5000, 50));
+        List<ShopGeoIndex.Hit> hits = index.search(2L, 120.3, 30.45, 100, 1);
+        assertEquals(1, hits.size());
+        assertEquals(Long.valueOf(1L), hits.get(0).getId());
+    }
+
+    @Test
+    public void testReloadDeletedShop() {
+        Shop deleted = shops.remove(1);
+        when(shopMapper.selectOne(any())).thenReturn(null);
+        index.onMessage(message(deleted.getId()), null);
+
+        assertSameHits(bruteForce(deleted.getTypeId(), deleted.getX(), deleted.getY(), 1000, 20),
+                index.search(deleted.getTypeId(), deleted.getX(), deleted.getY(), 1000, 20));
+    }
+
+    private List<ShopGeoIndex.Hit> bruteForce(long typeId, double x, double y, double radius, int limit) {
+        return shops.stream()
+                .filter(shop -> shop.getTypeId() == typeId)
+                .map(shop -> new double[]{shop.getId(), GeoUtils.distance(x, y, shop.getX(), shop.getY())})
+                .filter(hit -> hit[1] <= radius)
+                .sorted(Comparator.comparingDouble(hit -> hit[1]))
+                .limit(limit)
+                .map(hit -> {
+                    ShopGeoIndex.Hit expected = mock(ShopGeoIndex.Hit.class);
+                    when(expected.getId()).thenReturn((long) hit[0]);
+                    when(expected.getDistance()).thenReturn(hit[1]);
+                    return expected;
+                })
+                .collect(Collectors.toList());
+    }
+
+    private static void assertSameHits(List<ShopGeoIndex.Hit> expected, List<ShopGeoIndex.Hit> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            assertEquals(expected.get(i).getDistance(), actual.get(i).getDistance(), 1e-6);
+        }
+    }
+
+    private static DefaultMessage message(Long shopId) {
+        return new DefaultMessage(RedisConstants.SHOP_GEO_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                shopId.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}